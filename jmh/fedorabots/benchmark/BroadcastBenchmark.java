@@ -0,0 +1,108 @@
+package fedorabots.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fedorabots.common.Constants;
+import fedorabots.server.Connection;
+import fedorabots.server.Manager;
+import fedorabots.server.Room;
+import fedorabots.server.RoomLayout;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+import javafx.geometry.Point2D;
+
+/**
+ * Measures encoding a room's state and handing it to every robot's
+ * connection with {@link Manager#broadcastRoomState}. The connections only
+ * count the bytes they are given, so the numbers do not include the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"4", "16", "64"})
+    public int robots;
+
+    @Param({"0", "200"})
+    public int bullets;
+
+    private Manager manager;
+    private Room room;
+
+    /**
+     * A connection that throws away what it is sent.
+     */
+    private static class Sink implements Connection {
+        long bytes;
+
+        @Override
+        public boolean send(ByteBuffer buf) {
+            bytes += buf.remaining();
+            return true;
+        }
+
+        @Override
+        public boolean send(ByteBuffer header, ByteBuffer body) {
+            bytes += header.remaining() + body.remaining();
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Room.GameAlreadyStartedException {
+        manager = new Manager();
+        room = new Room(robots, World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT));
+        manager.addRoom(room);
+        Random random = new Random(1);
+        for (short id = 0; id < robots; id++) {
+            Point2D location = RoomLayout.getLocation(room);
+            room.addRobot(new Robot(id, null, location.getX(), location.getY(), random.nextDouble() * 2 * Math.PI,
+                                    Constants.Robot.RADIUS, Constants.Robot.MASS));
+            room.getRobotConnections().put(new Sink(), id);
+        }
+        World world = room.getWorld();
+        for (int i = 0; i < bullets; i++) {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            room.addBullet(world.getBulletPool().acquire(random.nextDouble() * Constants.World.WIDTH,
+                                                         random.nextDouble() * Constants.World.HEIGHT,
+                                                         Constants.Bullet.RADIUS, Constants.Bullet.MASS,
+                                                         Math.cos(angle), Math.sin(angle)));
+        }
+    }
+
+    @Benchmark
+    public void broadcastRoomState() {
+        World world = room.getWorld();
+        synchronized (world) {
+            manager.broadcastRoomState(null, room, room.robotsById().values(), world);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fedorabots.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.Sim;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Measures a tick of the sim on a scrolling world full of moving robots.
+ *
+ * The world grows with the number of robots so that they are as crowded as
+ * in a normal room, and the sim is deterministic so that every tick is one
+ * step of {@link Sim#MIN_TICK_LENGTH}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimBenchmark {
+
+    /** The area of the world per robot, in square pixels. */
+    static final double AREA_PER_ENTITY = 2000;
+    private static final DoubleConsumer NO_BROADCAST = millis -> { };
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entities;
+
+    private Sim sim;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        double side = Math.sqrt(entities * AREA_PER_ENTITY);
+        World world = World.generateScrollingWorld(0, 0, side, side);
+        Random random = new Random(1);
+        for (int i = 0; i < entities; i++) {
+            Robot robot = new Robot((short) i, null, random.nextDouble() * side, random.nextDouble() * side,
+                                    random.nextDouble() * 2 * Math.PI, Constants.Robot.RADIUS, Constants.Robot.MASS);
+            double angle = random.nextDouble() * 2 * Math.PI;
+            robot.setAcceleration(Math.cos(angle), Math.sin(angle));
+            world.add(robot);
+        }
+        sim = new Sim(world);
+        sim.setDeterministic(true);
+    }
+
+    @Benchmark
+    public long tick() {
+        return sim.tick(NO_BROADCAST);
+    }
+}
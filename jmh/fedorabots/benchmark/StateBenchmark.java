@@ -0,0 +1,66 @@
+package fedorabots.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Measures writing the robots of a room into a state message with
+ * {@link World#writeState(ByteBuffer, java.util.Collection)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+
+    @Param({"4", "16", "64"})
+    public int robots;
+
+    private World world;
+    private List<Robot> robotList = new ArrayList<Robot>();
+    private ByteBuffer buf;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        world = World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
+        Random random = new Random(1);
+        for (int i = 0; i < robots; i++) {
+            Robot robot = new Robot((short) i, null, random.nextDouble() * Constants.World.WIDTH,
+                                    random.nextDouble() * Constants.World.HEIGHT, random.nextDouble() * 2 * Math.PI,
+                                    Constants.Robot.RADIUS, Constants.Robot.MASS);
+            world.add(robot);
+            robotList.add(robot);
+        }
+        buf = ByteBuffer.allocate(World.stateLength(robotList, Collections.emptyList()));
+    }
+
+    @Benchmark
+    public ByteBuffer writeState() {
+        buf.clear();
+        world.writeState(buf, robotList);
+        return buf;
+    }
+}
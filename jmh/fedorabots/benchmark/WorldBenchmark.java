@@ -0,0 +1,76 @@
+package fedorabots.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Entity;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Measures looking up the entities in a robot's detection range with
+ * {@link World#forCollidingUnsafe(double, double, double, double, Consumer)},
+ * in both the split world tree and the grid world.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldBenchmark {
+
+    private static final int QUERIES = 1024;
+    private static final double QUERY_SIZE = 2 * Constants.Robot.DETECTION_RANGE;
+
+    @Param({"100", "1000", "10000"})
+    public int entities;
+
+    @Param({"false", "true"})
+    public boolean grid;
+
+    private World world;
+    private double[] queryX = new double[QUERIES], queryY = new double[QUERIES];
+    private int query;
+    private int found;
+    private final Consumer<Entity> counter = e -> found++;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        double side = Math.sqrt(entities * SimBenchmark.AREA_PER_ENTITY);
+        world = grid ? World.generateScrollingGridWorld(0, 0, side, side)
+                     : World.generateScrollingWorld(0, 0, side, side);
+        Random random = new Random(1);
+        for (int i = 0; i < entities; i++) {
+            world.add(new Robot((short) i, null, random.nextDouble() * side, random.nextDouble() * side, 0,
+                                Constants.Robot.RADIUS, Constants.Robot.MASS));
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            queryX[i] = random.nextDouble() * (side - QUERY_SIZE);
+            queryY[i] = random.nextDouble() * (side - QUERY_SIZE);
+        }
+    }
+
+    @Benchmark
+    public int forCollidingUnsafe() {
+        query = (query + 1) % QUERIES;
+        found = 0;
+        world.forCollidingUnsafe(queryX[query], queryY[query], QUERY_SIZE, QUERY_SIZE, counter);
+        return found;
+    }
+}
@@ -9,30 +9,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 import fedorabots.client.GameState.BulletState;
 import fedorabots.client.GameState.HealthMapState;
 import fedorabots.client.GameState.ObstacleState;
 import fedorabots.client.GameState.RobotState;
-import fedorabots.client.event.Vaporizer;
 import fedorabots.client.figure.BulletFigure;
-import fedorabots.client.figure.JammerFigure;
-import fedorabots.client.figure.MeteoriteFigure;
 import fedorabots.client.figure.ObstacleFigure;
 import fedorabots.client.figure.RobotFigure;
-import fedorabots.client.figure.TurretFigure;
-import fedorabots.client.figure.VaporizerFigure;
-import fedorabots.client.sensor.DetectedEntity;
-import fedorabots.client.sensor.DetectedObstacle;
-import fedorabots.client.sensor.DetectedRobot;
-import fedorabots.client.sensor.DetectedObstacle.ObstacleType;
 import fedorabots.common.Constants;
 import fedorabots.common.ModdedBufferedImage;
 import javafx.application.Platform;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.event.EventHandler;
-import javafx.geometry.Point2D;
 import javafx.geometry.Rectangle2D;
 import javafx.scene.Group;
 import javafx.scene.Node;
@@ -190,8 +179,14 @@ public class Display {
         });
     }
 
-    private void draw(GameState state) {
+    private void draw(GameState update) {
+        // The state is drawn later, by when a reused state may hold another update
+        GameState state = update.isReused() ? update.copy() : update;
         Platform.runLater(() -> {
+            // Robots are only sent the robots they can see, so hide the others
+            for (RobotFigure robot : robots.values()) {
+                robot.setVisible(false);
+            }
             for (RobotState rs : state.robotStates()) {
                 short rId = rs.getId();
                 RobotFigure robot = robots.get(rId);
@@ -199,6 +194,7 @@ public class Display {
                     throw new RuntimeException("An unexpected robot with ID " + rId + " decided to join the game.");
                 }
 
+                robot.setVisible(true);
                 robot.setTranslateX(rs.getX());
                 robot.setTranslateY(rs.getY());
                 double angle = (rs.getVelocityAngle() / 255.0 * 360);
@@ -254,42 +250,6 @@ public class Display {
         }
     }
 
-    public List<Point2D> getJammerCenters() {
-        return obstacles.values().stream()
-            .filter(JammerFigure.class::isInstance)
-            .map(fig -> new Point2D(fig.getTranslateX(), fig.getTranslateY()))
-            .collect(Collectors.toList());
-    }
-
-    public Vaporizer vaporizerById(byte id) {
-        ObstacleFigure obstacle = obstacles.get(id);
-        return new Vaporizer((int) obstacle.getTranslateX(), (int) obstacle.getTranslateY());
-    }
-
-    private static ObstacleType toObstacleType(ObstacleFigure fig) {
-        if (fig instanceof JammerFigure) return ObstacleType.JAMMER;
-        if (fig instanceof MeteoriteFigure) return ObstacleType.METEORITE;
-        if (fig instanceof TurretFigure) return ObstacleType.TURRET;
-        if (fig instanceof VaporizerFigure) return ObstacleType.VAPORIZER;
-        throw new RuntimeException("Cannot find obstacle type for class " + fig.getClass().getSimpleName());
-    }
-
-    public List<DetectedEntity> nearbyEntities(Point2D point) {
-        List<DetectedEntity> entities = new ArrayList<DetectedEntity>();
-        for (RobotFigure robot : robots.values()) {
-            double distance = point.distance(robot.getTranslateX(), robot.getTranslateY());
-            if (distance <= Constants.Robot.DETECTION_RANGE && distance > 5) {
-                entities.add(new DetectedRobot((int) robot.getTranslateX(), (int) robot.getTranslateY(), robot.getColor()));
-            }
-        }
-        for (ObstacleFigure obstacle : obstacles.values()) {
-            if (point.distance(obstacle.getTranslateX(), obstacle.getTranslateY()) <= Constants.Robot.DETECTION_RANGE) {
-                entities.add(new DetectedObstacle((int) obstacle.getTranslateX(), (int) obstacle.getTranslateY(), toObstacleType(obstacle)));
-            }
-        }
-        return entities;
-    }
-
     public void setOnKeyPressed(EventHandler<KeyEvent> handler) {
         scene.setOnKeyPressed(handler);
     }
@@ -7,7 +7,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Objects;
-import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import fedorabots.client.GameState.HealthMapState;
@@ -20,11 +19,20 @@ public class GameManager {
     private Collection<Consumer<GameState>> stateListeners = new ArrayList<Consumer<GameState>>();
     private Collection<Consumer<GameState>> beginListeners = new ArrayList<Consumer<GameState>>();
     private Collection<Consumer<GameState>> endListeners = new ArrayList<Consumer<GameState>>();
-    private Collection<BiConsumer<Double, Double>> velocityListeners = new ArrayList<BiConsumer<Double, Double>>();
+    private Collection<VelocityListener> velocityListeners = new ArrayList<VelocityListener>();
     private Collection<Consumer<Map<Short, HealthMapState>>> healthListeners = new ArrayList<Consumer<Map<Short, HealthMapState>>>();
     private Collection<Consumer<Map<Byte, Byte>>> obstacleListeners = new ArrayList<Consumer<Map<Byte, Byte>>>();
     private Map<Short, Color> colors;
     private GameAdapter adapter;
+    private boolean keepAlive;
+
+    /**
+     * Listens to the velocity of the robot, which is given without boxing it
+     * since it arrives with every state.
+     */
+    public interface VelocityListener {
+        void velocityChanged(double vx, double vy);
+    }
 
     private static boolean contains(Object needle, Object[] haystack) {
         for (Object x : haystack) {
@@ -45,7 +53,7 @@ public class GameManager {
             }
             adapter.setManager(this);
             Thread t = new Thread(adapter);
-            t.setDaemon(true);
+            t.setDaemon(!keepAlive);
             t.start();
         } catch (IllegalAccessException|InstantiationException|NoSuchMethodException|InvocationTargetException e) {
             e.printStackTrace();
@@ -53,6 +61,14 @@ public class GameManager {
         }
     }
 
+    /**
+     * Makes the thread that receives messages from the game keep the program
+     * running once it is joined, which the display does otherwise.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
     public void addRobot(short robot, Color color) {
         if (colors.put(robot, color) == null) {
             throw new RuntimeException("Cannot override the color of the robot with ID " + robot + ".");
@@ -77,7 +93,7 @@ public class GameManager {
         endListeners.add(listener);
     }
 
-    public void addVelocityListener(BiConsumer<Double, Double> listener) {
+    public void addVelocityListener(VelocityListener listener) {
         velocityListeners.add(listener);
     }
 
@@ -105,8 +121,8 @@ public class GameManager {
     }
 
     public void updateRobotVelocity(double vx, double vy) {
-        for (BiConsumer<Double, Double> vl : velocityListeners) {
-            vl.accept(vx, vy);
+        for (VelocityListener vl : velocityListeners) {
+            vl.velocityChanged(vx, vy);
         }
     }
 
@@ -1,9 +1,12 @@
 package fedorabots.client;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
@@ -12,17 +15,73 @@ import javafx.scene.paint.Color;
 
 /**
  * Receives messages from the network and notifies the game manager accordingly.
+ *
+ * <p>Robot updates and shoot requests are not sent right away. They are
+ * collected for {@link #COMMAND_DELAY} milliseconds and sent together in one
+ * command batch (message 132), and an update replaces the one before it
+ * unless the robot shot in between, since each update holds the robot's
+ * whole acceleration and rotation.</p>
+ *
+ * <p>With {@link #REUSE_STATES} the game states given to the manager are
+ * decoded into two states that are filled in turn, so that receiving a state
+ * creates no objects.</p>
  */
 public class GameNetworkAdapter implements GameAdapter {
 
+    /**
+     * How long commands are collected before they are sent, in milliseconds,
+     * which can be set with the <code>fedorabots.commandDelay</code> system
+     * property.
+     */
+    public static final int COMMAND_DELAY = Integer.getInteger("fedorabots.commandDelay", 2);
+    /** The most bytes of commands sent in one batch. */
+    public static final int MAX_BATCH_LENGTH = 512;
+    /**
+     * Whether game states are reused instead of created for each state
+     * message, which can be set with the <code>fedorabots.reuseStates</code>
+     * system property. A reused state is only valid until the update after
+     * the one it was given in, so state listeners that keep a state longer
+     * must {@link GameState#copy} it. The maps given to health and obstacle
+     * listeners are cleared for the next message, and each robot's
+     * HealthMapState is reset for its next health message.
+     */
+    public static final boolean REUSE_STATES = Boolean.getBoolean("fedorabots.reuseStates");
+
     private Semaphore awaitingId = new Semaphore(1);
     private Semaphore awaitingSpectateOk = new Semaphore(1);
 
     private Socket s;
     private InputStream inp;
+    private OutputStream out;
     private volatile GameManager g;
 
     private short robotId;
+    private boolean spectating;
+    private SnapshotDecoder snapshots = new SnapshotDecoder();
+
+    // Messages are read into the same buffer, which grows as needed
+    private byte[] buffer = new byte[1024];
+    private ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private final byte[] header = new byte[16];
+    private final byte[] ack = new byte[3];
+    // The states and maps that are filled in turn when states are reused
+    private final GameState[] states = new GameState[2];
+    private int nextState;
+    private final Map<Short, GameState.HealthMapState> healths = new HashMap<Short, GameState.HealthMapState>();
+    // The health states given out so far, by robot id, which are reset and
+    // reused for the robot's next health message
+    private short[] healthIds = new short[16];
+    private GameState.HealthMapState[] healthStates = new GameState.HealthMapState[16];
+    // The health message each of them was last used in
+    private int[] healthMessages = new int[16];
+    private int healthCount;
+    private int healthMessage;
+    private final Map<Byte, Byte> rotations = new HashMap<Byte, Byte>();
+
+    // Commands waiting to be sent, after room for the batch's type and length
+    private final ByteBuffer commands = ByteBuffer.allocate(3 + MAX_BATCH_LENGTH);
+    // Where the last robot update starts in commands, or -1 if a shoot request came after it
+    private int lastUpdate = -1;
 
     public GameNetworkAdapter() throws IOException {
         this(getHost());
@@ -30,8 +89,19 @@ public class GameNetworkAdapter implements GameAdapter {
 
     public GameNetworkAdapter(String host) throws IOException {
         s = new Socket(host, 8090);
-        s.getOutputStream().flush();
-        inp = s.getInputStream();
+        s.setTcpNoDelay(true);
+        out = s.getOutputStream();
+        out.flush();
+        inp = new BufferedInputStream(s.getInputStream());
+        commands.position(3);
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new GameState();
+            states[i].setReused(true);
+        }
+
+        Thread sender = new Thread(this::sendCommands, "command-sender");
+        sender.setDaemon(true);
+        sender.start();
     }
 
     private static String getHost() {
@@ -60,7 +130,7 @@ public class GameNetworkAdapter implements GameAdapter {
         bb.put(r);
         bb.put(g);
         bb.put(b);
-        s.getOutputStream().write(bb.array());
+        write(bb.array());
     }
 
     @Override
@@ -70,29 +140,113 @@ public class GameNetworkAdapter implements GameAdapter {
         } catch (InterruptedException e) {
             throw new RuntimeException("Could not acquire awaiting semaphore.");
         }
+        spectating = true;
         ByteBuffer bb = ByteBuffer.allocate(3);
         bb.put((byte) 192);
         bb.putShort(roomId);
-        s.getOutputStream().write(bb.array());
+        write(bb.array());
+    }
+
+    /**
+     * Tells the server that the snapshot with the given id was received, so
+     * that later state messages can be sent as deltas against it.
+     */
+    private void sendSnapshotAck(int snapshotId) {
+        // Only the thread receiving states sends acks, so the buffer is reused
+        ack[0] = (byte) (spectating ? 193 : 131);
+        ack[1] = (byte) (snapshotId >> 8);
+        ack[2] = (byte) snapshotId;
+        try {
+            write(ack);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes a message to the server. Messages are written by several threads
+     * (the robot, the sender of commands and the receiver of states), so each
+     * message is written while holding the lock on the stream.
+     */
+    private void write(byte[] bytes, int length) throws IOException {
+        synchronized (out) {
+            out.write(bytes, 0, length);
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        write(bytes, bytes.length);
     }
 
     @Override
     public void sendRobotUpdate(short id, double ax, double ay, double rotation) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(13);
-        bb.put((byte) 129);
-        bb.putShort(id);
-        bb.putFloat((float) ax);
-        bb.putFloat((float) ay);
-        bb.putShort((short) Math.round(rotation / 360 * (Short.MAX_VALUE - Short.MIN_VALUE)));
-        s.getOutputStream().write(bb.array());
+        synchronized (commands) {
+            if (lastUpdate != -1) {
+                commands.position(lastUpdate);
+            } else if (commands.remaining() < 13) {
+                flushCommands();
+            }
+            lastUpdate = commands.position();
+            commands.put((byte) 129);
+            commands.putShort(id);
+            commands.putFloat((float) ax);
+            commands.putFloat((float) ay);
+            commands.putShort((short) Math.round(rotation / 360 * (Short.MAX_VALUE - Short.MIN_VALUE)));
+            commands.notifyAll();
+        }
     }
 
     @Override
     public void sendRobotShootRequest(short id) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(3);
-        bb.put((byte) 130);
-        bb.putShort(id);
-        s.getOutputStream().write(bb.array());
+        synchronized (commands) {
+            if (commands.remaining() < 3) {
+                flushCommands();
+            }
+            lastUpdate = -1;
+            commands.put((byte) 130);
+            commands.putShort(id);
+            commands.notifyAll();
+        }
+    }
+
+    /**
+     * Sends the collected commands as one batch. The caller must hold the lock
+     * on <code>commands</code>.
+     */
+    private void flushCommands() throws IOException {
+        int length = commands.position();
+        if (length == 3) {
+            return;
+        }
+        commands.put(0, (byte) 132);
+        commands.putShort(1, (short) (length - 3));
+        commands.position(3);
+        lastUpdate = -1;
+        write(commands.array(), length);
+    }
+
+    /**
+     * Waits for commands, gives the robot {@link #COMMAND_DELAY} milliseconds
+     * to add to them and then sends them, until the socket is closed.
+     */
+    private void sendCommands() {
+        try {
+            while (!s.isClosed()) {
+                synchronized (commands) {
+                    while (commands.position() == 3) {
+                        commands.wait();
+                    }
+                }
+                Thread.sleep(COMMAND_DELAY);
+                synchronized (commands) {
+                    flushCommands();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not send the robot's commands because of a network error\n" + e);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -126,6 +280,7 @@ public class GameNetworkAdapter implements GameAdapter {
                 int numEntities = 0;
 
                 int bufferLen = 0;
+                boolean delta = false;
                 if (mType == 0 || mType == 1 || mType == 2 || mType == 3) {
                     numEntities = inp.read();
 
@@ -139,6 +294,11 @@ public class GameNetworkAdapter implements GameAdapter {
                     }
                     if (mType == 2) bufferLen = numEntities * 5;
                     if (mType == 3) bufferLen = numEntities * 2;
+                } else if (mType == 5) {
+                    delta = true;
+                    readFully(header, 0, header.length);
+                    bufferLen = header.length + ((header[12] & 0xFF) << 24) + ((header[13] & 0xFF) << 16)
+                                              + ((header[14] & 0xFF) << 8) + (header[15] & 0xFF);
                 } else if (mType == 64) {
                     bufferLen = 2;
                 } else if (mType == 4 || mType == 65 || mType == 66) {
@@ -147,31 +307,43 @@ public class GameNetworkAdapter implements GameAdapter {
                     throw new RuntimeException("Unknown message type " + mType + ".");
                 }
 
-                byte[] buffer = new byte[bufferLen];
+                if (bufferLen > buffer.length) {
+                    buffer = new byte[Math.max(bufferLen, buffer.length * 2)];
+                    bufferView = ByteBuffer.wrap(buffer);
+                }
                 int i = 0;
-                while (i < buffer.length) {
-                    i += inp.read(buffer, i, buffer.length - i);
+                if (delta) {
+                    System.arraycopy(header, 0, buffer, 0, header.length);
+                    i = header.length;
                 }
+                readFully(buffer, i, bufferLen);
 
-                parseBuffer(mType, buffer, numEntities);
+                parseBuffer(mType, buffer, bufferLen, numEntities);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    private void readFully(byte[] buffer, int i, int length) throws IOException {
+        while (i < length) {
+            i += inp.read(buffer, i, length - i);
+        }
+    }
+
     private void throwError(String error) {
         new RuntimeException(error).printStackTrace();
         System.exit(1);
     }
 
-    private void parseBuffer(int type, byte[] buffer, int numEntities) {
+    private void parseBuffer(int type, byte[] buffer, int length, int numEntities) {
         switch (type) {
-            case 0:  parseStart(buffer, numEntities); break;
-            case 1:  parseState(buffer, numEntities); break;
-            case 2:  parseHealths(buffer); break;
-            case 3:  parseObstacles(buffer); break;
+            case 0:  parseStart(buffer, length, numEntities); break;
+            case 1:  parseState(buffer, length, numEntities); break;
+            case 2:  parseHealths(buffer, length); break;
+            case 3:  parseObstacles(buffer, length); break;
             case 4:  parseSpectateOk(buffer); break;
+            case 5:  parseDelta(length); break;
             case 64: parseJoined(buffer); break;
             case 65: throwError("The room the robot tried to join does not exist."); break;
             case 66: throwError("The room the robot tried to join already started its game."); break;
@@ -179,9 +351,9 @@ public class GameNetworkAdapter implements GameAdapter {
         }
     }
 
-    private void parseStart(byte[] buffer, int numEntities) {
+    private void parseStart(byte[] buffer, int length, int numEntities) {
         GameState.RobotState[] state = new GameState.RobotState[numEntities];
-        GameState.ObstacleState[] obstacles = new GameState.ObstacleState[(buffer.length - numEntities*11) / 5];
+        GameState.ObstacleState[] obstacles = new GameState.ObstacleState[(length - numEntities*11) / 5];
         Map<Short, Color> colors = new HashMap<Short, Color>();
 
         for (int i = 0; i < numEntities * 11; i += 11) {
@@ -204,15 +376,38 @@ public class GameNetworkAdapter implements GameAdapter {
             obstacles[j] = new GameState.ObstacleState(id, type, x, y, (byte) 0);
         }
 
+        // The robots of the last game will not get health messages any more
+        Arrays.fill(healthStates, 0, healthCount, null);
+        healthCount = 0;
         g.startGame(new GameState(state, obstacles), colors);
+        // Ask the server to send the state as deltas from now on
+        sendSnapshotAck(SnapshotDecoder.NO_SNAPSHOT);
     }
 
-    private void parseState(byte[] buffer, int numEntities) {
-        GameState.RobotState[] state = new GameState.RobotState[numEntities];
-        GameState.BulletState[] bullets = new GameState.BulletState[(buffer.length - numEntities*8 - 8) / 4];
-        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, 8);
-        double vx = buf.getFloat();
-        double vy = buf.getFloat();
+    /**
+     * Returns the state to fill with the next state message, which is one of
+     * the reused states if states are reused.
+     */
+    private GameState stateToFill() {
+        if (!REUSE_STATES) {
+            return new GameState();
+        }
+        GameState state = states[nextState];
+        state.clear();
+        return state;
+    }
+
+    private void updateState(GameState state, double vx, double vy) {
+        // The state just given out stays untouched until the next update
+        nextState ^= 1;
+        g.updateState(state);
+        g.updateRobotVelocity(vx, vy);
+    }
+
+    private void parseState(byte[] buffer, int length, int numEntities) {
+        GameState state = stateToFill();
+        double vx = Float.intBitsToFloat(readInt(buffer, 0));
+        double vy = Float.intBitsToFloat(readInt(buffer, 4));
         for (int i = 8; i < numEntities * 8 + 8; i += 8) {
             short id = (short) (((buffer[i] & 0xFF) << 8) + (buffer[i + 1] & 0xFF));
             int x = ((buffer[i + 2] & 0xFF) << 4) + ((buffer[i + 3] & 0xFF) >> 4);
@@ -220,22 +415,46 @@ public class GameNetworkAdapter implements GameAdapter {
             byte rot = (byte) buffer[i + 5];
             byte vangle = (byte) buffer[i + 6];
             byte aangle = (byte) buffer[i + 7];
-            state[(i-8)/8] = new GameState.RobotState(id, x, y, rot, vangle, aangle);
+            state.addRobot(id, x, y, rot, vangle, aangle);
         }
-        for (int i = numEntities * 8 + 8; i < buffer.length; i += 4) {
+        for (int i = numEntities * 8 + 8; i < length; i += 4) {
             int x = ((buffer[i + 0] & 0xFF) << 4) + ((buffer[i + 1] & 0xFF) >> 4);
             int y = ((buffer[i + 1] & 0x0F) << 8) + (buffer[i + 2] & 0xFF);
             byte rot = (byte) buffer[i + 3];
-            bullets[(i-numEntities*8-8)/4] = new GameState.BulletState(x, y, rot);
+            state.addBullet(x, y, rot);
         }
-        g.updateState(new GameState(state, bullets));
-        g.updateRobotVelocity(vx, vy);
+        updateState(state, vx, vy);
     }
 
-    private void parseHealths(byte[] buffer) {
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
+    private static int readInt(byte[] buffer, int i) {
+        return ((buffer[i] & 0xFF) << 24) + ((buffer[i + 1] & 0xFF) << 16)
+             + ((buffer[i + 2] & 0xFF) << 8) + (buffer[i + 3] & 0xFF);
+    }
+
+    private void parseDelta(int length) {
+        ByteBuffer buf = bufferView;
+        buf.clear();
+        buf.limit(length);
+        int snapshotId = buf.getShort() & 0xFFFF;
+        int baselineId = buf.getShort() & 0xFFFF;
+        double vx = buf.getFloat();
+        double vy = buf.getFloat();
+        buf.getInt(); // Length of the body
+        GameState state = stateToFill();
+        if (snapshots.decode(snapshotId, baselineId, buf, state)) {
+            sendSnapshotAck(snapshotId);
+            updateState(state, vx, vy);
+        }
+    }
+
+    private void parseHealths(byte[] buffer, int length) {
+        if (REUSE_STATES) {
+            parseHealthsReused(buffer, length);
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
         Map<Short, GameState.HealthMapState> healths = new HashMap<Short, GameState.HealthMapState>();
-        for (int i = 0; i < buffer.length; i += 5) {
+        for (int i = 0; i < length; i += 5) {
             short robotId = bb.getShort();
             double health = (bb.get() & 0xFF) / 255.0;
             short angle = bb.getShort();
@@ -249,11 +468,54 @@ public class GameNetworkAdapter implements GameAdapter {
         g.updateHealths(healths);
     }
 
-    private void parseObstacles(byte[] buffer) {
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
-        Map<Byte, Byte> rotations = new HashMap<Byte, Byte>();
-        for (int i = 0; i < buffer.length; i += 2) {
-            rotations.put(bb.get(), bb.get());
+    /**
+     * Like parseHealths, but fills the reused map with the robots' reused
+     * health states.
+     */
+    private void parseHealthsReused(byte[] buffer, int length) {
+        healths.clear();
+        healthMessage++;
+        for (int i = 0; i < length; i += 5) {
+            short robotId = (short) (((buffer[i] & 0xFF) << 8) + (buffer[i + 1] & 0xFF));
+            double health = (buffer[i + 2] & 0xFF) / 255.0;
+            short angle = (short) (((buffer[i + 3] & 0xFF) << 8) + (buffer[i + 4] & 0xFF));
+            int index = healthIndex(robotId);
+            if (index == -1) {
+                if (healthCount == healthIds.length) {
+                    healthIds = Arrays.copyOf(healthIds, healthCount * 2);
+                    healthStates = Arrays.copyOf(healthStates, healthCount * 2);
+                    healthMessages = Arrays.copyOf(healthMessages, healthCount * 2);
+                }
+                index = healthCount++;
+                healthIds[index] = robotId;
+                healthStates[index] = new GameState.HealthMapState(health, angle);
+                healthMessages[index] = healthMessage;
+                healths.put(robotId, healthStates[index]);
+            } else if (healthMessages[index] != healthMessage) {
+                healthStates[index].reset(health, angle);
+                healthMessages[index] = healthMessage;
+                healths.put(robotId, healthStates[index]);
+            } else {
+                healthStates[index].addAngle(angle);
+            }
+        }
+        g.updateHealths(healths);
+    }
+
+    private int healthIndex(short robotId) {
+        for (int i = 0; i < healthCount; i++) {
+            if (healthIds[i] == robotId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void parseObstacles(byte[] buffer, int length) {
+        Map<Byte, Byte> rotations = REUSE_STATES ? this.rotations : new HashMap<Byte, Byte>();
+        rotations.clear();
+        for (int i = 0; i < length; i += 2) {
+            rotations.put(buffer[i], buffer[i + 1]);
         }
         g.updateObstacles(rotations);
     }
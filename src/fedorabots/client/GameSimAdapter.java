@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Semaphore;
 
 import fedorabots.client.GameState.HealthMapState;
@@ -37,6 +38,7 @@ public class GameSimAdapter implements GameAdapter {
     private Semaphore gameStartedLock = new Semaphore(1);
     private Robot robot;
     private Collection<Obstacle> obstacles;
+    private Random random;
 
     public GameSimAdapter() {
         try {
@@ -44,8 +46,12 @@ public class GameSimAdapter implements GameAdapter {
         } catch (InterruptedException e) {
             throw new RuntimeException("Could not acquire game started semaphore.");
         }
-        world = World.generateScrollingWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
+        world = World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
         sim = new Sim(world);
+        // Seeded like the server's rooms, so that local games can be repeated
+        Long seed = Long.getLong("fedorabots.seed");
+        random = seed == null ? new Random() : new Random(seed);
+        sim.setDeterministic(seed != null);
     }
 
     @Override
@@ -58,16 +64,16 @@ public class GameSimAdapter implements GameAdapter {
         RoomConfiguration config = getRoomConfiguration(difficulty);
         Color robotColor = new Color(r & 0xFF, g & 0xFF, b & 0xFF);
         robot = new Robot(robotId, robotColor,
-                          Math.random() * Constants.World.WIDTH,
-                          Math.random() * Constants.World.HEIGHT,
-                          Math.random() * 2 * Math.PI,
+                          random.nextDouble() * Constants.World.WIDTH,
+                          random.nextDouble() * Constants.World.HEIGHT,
+                          random.nextDouble() * 2 * Math.PI,
                           Constants.Robot.RADIUS,
                           Constants.Robot.MASS);
         List<Entity> entitiesToAdd = config.getObstacles();
         entitiesToAdd.add(robot);
         int i = 0;
         while (!entitiesToAdd.isEmpty()) {
-            int index = (int) (Math.random() * entitiesToAdd.size());
+            int index = random.nextInt(entitiesToAdd.size());
             Entity entity = entitiesToAdd.remove(index);
             Point2D location = RoomLayout.getLocation(i++);
 
@@ -1,6 +1,7 @@
 package fedorabots.client;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -11,22 +12,50 @@ import javafx.scene.paint.Color;
  *
  * It is assumed that a GameState object is created without knowledge of the robots' colors.
  * Therefore, the color of the robots in the gamestate can be updated when discovered.
+ *
+ * Robots and bullets can be read by index (<code>getRobotX(i)</code> for
+ * <code>i</code> below <code>getRobotCount()</code> and so on) without
+ * creating any objects.
  */
 public class GameState {
     private Map<Short, Color> colorMap;
+    private ObstacleState[] obstacleStates;
+    private boolean reused;
+
+    // Robots and bullets are kept in arrays, so that a state can be refilled
+    // without creating any objects, and only turned into RobotStates and
+    // BulletStates when those are asked for.
+    private int robotCount;
+    private short[] robotIds = new short[0];
+    private int[] robotXs = new int[0];
+    private int[] robotYs = new int[0];
+    private byte[] robotRotations = new byte[0];
+    private byte[] robotVAngles = new byte[0];
+    private byte[] robotAAngles = new byte[0];
+    private int bulletCount;
+    private int[] bulletXs = new int[0];
+    private int[] bulletYs = new int[0];
+    private byte[] bulletRotations = new byte[0];
     private RobotState[] robotStates;
     private BulletState[] bulletStates;
-    private ObstacleState[] obstacleStates;
+
+    /**
+     * Creates a GameState with no robots or bullets, which are added with
+     * {@link #addRobot} and {@link #addBullet}.
+     */
+    GameState() {
+    }
 
     /**
      * Creates a GameState with the specified robot states. Note that these
      * robot states will be modified as a side effect.
      */
     public GameState(RobotState[] robotStates) {
-        this.robotStates = robotStates;
         for (RobotState s : robotStates) {
+            addRobot(s.id, s.x, s.y, s.rotation, s.vAngle, s.aAngle);
             s.setSurroundingState(this);
         }
+        this.robotStates = robotStates;
     }
 
     /**
@@ -44,6 +73,9 @@ public class GameState {
      */
     public GameState(RobotState[] robotStates, BulletState[] bulletStates) {
         this(robotStates);
+        for (BulletState s : bulletStates) {
+            addBullet(s.x, s.y, s.rotation);
+        }
         this.bulletStates = bulletStates;
     }
 
@@ -52,9 +84,8 @@ public class GameState {
      * Note that these robot states will be modified as a side effect.
      */
     public GameState(RobotState[] robotStates, ObstacleState[] obstacleStates, BulletState[] bulletStates) {
-        this(robotStates);
+        this(robotStates, bulletStates);
         this.obstacleStates = obstacleStates;
-        this.bulletStates = bulletStates;
     }
 
     public static class RobotState {
@@ -157,16 +188,40 @@ public class GameState {
 
         private double health;
         private List<DamageAngle> angles;
+        // Every DamageAngle made for this state, to be reused after a reset
+        private List<DamageAngle> created;
 
         public HealthMapState(double health, short angle) {
             this.health = health;
             this.angles = new ArrayList<DamageAngle>(3);
-            angles.add(new DamageAngle(angle));
+            this.created = new ArrayList<DamageAngle>(3);
+            addAngle(angle);
         }
 
         public double getHealth() { return health; }
         public List<DamageAngle> getAngles() { return angles; }
-        public void addAngle(short angle) { angles.add(new DamageAngle(angle)); }
+
+        public void addAngle(short angle) {
+            DamageAngle damageAngle;
+            if (angles.size() < created.size()) {
+                damageAngle = created.get(angles.size());
+                damageAngle.angle = angle;
+            } else {
+                damageAngle = new DamageAngle(angle);
+                created.add(damageAngle);
+            }
+            angles.add(damageAngle);
+        }
+
+        /**
+         * Makes this state hold a new health and a single angle, reusing its
+         * DamageAngles.
+         */
+        void reset(double health, short angle) {
+            this.health = health;
+            angles.clear();
+            addAngle(angle);
+        }
 
     }
 
@@ -174,11 +229,194 @@ public class GameState {
         colorMap = cmap;
     }
 
+    /**
+     * Removes all robots and bullets, so that the state can be filled again.
+     */
+    void clear() {
+        robotCount = 0;
+        bulletCount = 0;
+        robotStates = null;
+        bulletStates = null;
+    }
+
+    void addRobot(short id, int x, int y, byte rotation, byte vAngle, byte aAngle) {
+        if (robotCount == robotIds.length) {
+            int capacity = Math.max(8, robotCount * 2);
+            robotIds = Arrays.copyOf(robotIds, capacity);
+            robotXs = Arrays.copyOf(robotXs, capacity);
+            robotYs = Arrays.copyOf(robotYs, capacity);
+            robotRotations = Arrays.copyOf(robotRotations, capacity);
+            robotVAngles = Arrays.copyOf(robotVAngles, capacity);
+            robotAAngles = Arrays.copyOf(robotAAngles, capacity);
+        }
+        robotIds[robotCount] = id;
+        robotXs[robotCount] = x;
+        robotYs[robotCount] = y;
+        robotRotations[robotCount] = rotation;
+        robotVAngles[robotCount] = vAngle;
+        robotAAngles[robotCount] = aAngle;
+        robotCount++;
+    }
+
+    void addBullet(int x, int y, byte rotation) {
+        if (bulletCount == bulletXs.length) {
+            int capacity = Math.max(32, bulletCount * 2);
+            bulletXs = Arrays.copyOf(bulletXs, capacity);
+            bulletYs = Arrays.copyOf(bulletYs, capacity);
+            bulletRotations = Arrays.copyOf(bulletRotations, capacity);
+        }
+        bulletXs[bulletCount] = x;
+        bulletYs[bulletCount] = y;
+        bulletRotations[bulletCount] = rotation;
+        bulletCount++;
+    }
+
+    void setReused(boolean reused) {
+        this.reused = reused;
+    }
+
+    /**
+     * Returns whether this state will be filled with a later update (see
+     * {@link GameNetworkAdapter#REUSE_STATES}), in which case listeners must
+     * {@link #copy} it to keep it past the next update.
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * Returns a copy of this state that is not reused.
+     */
+    public GameState copy() {
+        GameState copy = new GameState();
+        copy.colorMap = colorMap;
+        copy.obstacleStates = obstacleStates;
+        copy.robotCount = robotCount;
+        copy.robotIds = Arrays.copyOf(robotIds, robotCount);
+        copy.robotXs = Arrays.copyOf(robotXs, robotCount);
+        copy.robotYs = Arrays.copyOf(robotYs, robotCount);
+        copy.robotRotations = Arrays.copyOf(robotRotations, robotCount);
+        copy.robotVAngles = Arrays.copyOf(robotVAngles, robotCount);
+        copy.robotAAngles = Arrays.copyOf(robotAAngles, robotCount);
+        copy.bulletCount = bulletCount;
+        copy.bulletXs = Arrays.copyOf(bulletXs, bulletCount);
+        copy.bulletYs = Arrays.copyOf(bulletYs, bulletCount);
+        copy.bulletRotations = Arrays.copyOf(bulletRotations, bulletCount);
+        return copy;
+    }
+
+    /**
+     * Returns the number of robots in this state.
+     */
+    public int getRobotCount() {
+        return robotCount;
+    }
+
+    /**
+     * Returns the id of the robot at the given index.
+     */
+    public short getRobotId(int i) {
+        return robotIds[i];
+    }
+
+    /**
+     * Returns the x coordinate of the robot at the given index.
+     */
+    public int getRobotX(int i) {
+        return robotXs[i];
+    }
+
+    /**
+     * Returns the y coordinate of the robot at the given index.
+     */
+    public int getRobotY(int i) {
+        return robotYs[i];
+    }
+
+    /**
+     * Returns the rotation of the blaster of the robot at the given index.
+     */
+    public byte getRobotRotation(int i) {
+        return robotRotations[i];
+    }
+
+    /**
+     * Returns the angle of the velocity of the robot at the given index.
+     */
+    public byte getRobotVelocityAngle(int i) {
+        return robotVAngles[i];
+    }
+
+    /**
+     * Returns the angle of the acceleration of the robot at the given index.
+     */
+    public byte getRobotAccelAngle(int i) {
+        return robotAAngles[i];
+    }
+
+    /**
+     * Returns the color of the robot at the given index.
+     */
+    public Color getRobotColor(int i) {
+        return colorForRobot(robotIds[i]);
+    }
+
+    /**
+     * Returns the number of bullets in this state.
+     */
+    public int getBulletCount() {
+        return bulletCount;
+    }
+
+    /**
+     * Returns the x coordinate of the bullet at the given index.
+     */
+    public int getBulletX(int i) {
+        return bulletXs[i];
+    }
+
+    /**
+     * Returns the y coordinate of the bullet at the given index.
+     */
+    public int getBulletY(int i) {
+        return bulletYs[i];
+    }
+
+    /**
+     * Returns the rotation of the bullet at the given index.
+     */
+    public byte getBulletRotation(int i) {
+        return bulletRotations[i];
+    }
+
+    /**
+     * Returns the robots as objects, which are created the first time this is
+     * called. Reading them by index with {@link #getRobotCount} and the other
+     * <code>getRobot</code> methods creates nothing.
+     */
     public RobotState[] robotStates() {
+        if (robotStates == null) {
+            robotStates = new RobotState[robotCount];
+            for (int i = 0; i < robotCount; i++) {
+                robotStates[i] = new RobotState(robotIds[i], robotXs[i], robotYs[i],
+                                                robotRotations[i], robotVAngles[i], robotAAngles[i]);
+                robotStates[i].setSurroundingState(this);
+            }
+        }
         return robotStates;
     }
 
+    /**
+     * Returns the bullets as objects, which are created the first time this is
+     * called.
+     */
     public BulletState[] bulletStates() {
+        if (bulletStates == null) {
+            bulletStates = new BulletState[bulletCount];
+            for (int i = 0; i < bulletCount; i++) {
+                bulletStates[i] = new BulletState(bulletXs[i], bulletYs[i], bulletRotations[i]);
+            }
+        }
         return bulletStates;
     }
 
@@ -8,7 +8,6 @@ import java.util.Map;
 import java.util.function.Supplier;
 
 import fedorabots.client.GameState.HealthMapState;
-import fedorabots.client.GameState.RobotState;
 import fedorabots.client.GameState.HealthMapState.DamageAngle;
 import fedorabots.client.event.Bullet;
 import fedorabots.client.event.BulletDamageEvent;
@@ -17,7 +16,6 @@ import fedorabots.client.event.EventHandler;
 import fedorabots.client.event.VaporizerDamageEvent;
 import fedorabots.client.sensor.DetectedEntity;
 import fedorabots.common.Constants;
-import javafx.geometry.Point2D;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.input.KeyEvent;
@@ -25,9 +23,23 @@ import javafx.scene.paint.Color;
 
 /**
  * User-accessible class for creating robots
+ *
+ * <p>A robot normally opens a window showing the game. Headless robots, made
+ * with <code>new Robot(true)</code> or with the
+ * <code>fedorabots.headless</code> system property set to true, never start
+ * JavaFX: they only keep what they know about the game in plain data, so many
+ * of them can run in one process. Headless robots have no display image and
+ * get no key events, but their sensors work the same.</p>
  */
 public class Robot {
+    /**
+     * Whether robots made with {@link #Robot()} are headless, set with
+     * <code>-Dfedorabots.headless=true</code>.
+     */
+    public static final boolean HEADLESS = Boolean.getBoolean("fedorabots.headless");
+
     private Display d;
+    private SensorModel sensors;
     private Color color = Color.BLACK;
     private short id;
     private boolean inGame = false;
@@ -47,16 +59,35 @@ public class Robot {
     private List<EventHandler<VaporizerDamageEvent>> vaporizerListeners = new ArrayList<EventHandler<VaporizerDamageEvent>>();
 
     public Robot() {
-        try {
-            d = new Display();
-        } catch (ConnectException e) {
-            new RuntimeException("Could not connect to server", e).printStackTrace();
-            System.exit(1);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+        this(HEADLESS);
+    }
+
+    /**
+     * Creates a robot, which opens a window showing the game unless it is
+     * headless.
+     *
+     * @param headless  Whether the robot runs without a display
+     */
+    public Robot(boolean headless) {
+        if (headless) {
+            gm = new GameManager();
+            gm.setKeepAlive(true);
+        } else {
+            try {
+                d = new Display();
+            } catch (ConnectException e) {
+                new RuntimeException("Could not connect to server", e).printStackTrace();
+                System.exit(1);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            gm = d.getGameManager();
+            d.setOnKeyPressed(this::onKeyPressed);
+            d.setOnKeyReleased(this::onKeyReleased);
+            d.setOnKeyTyped(this::onKeyTyped);
         }
-        gm = d.getGameManager();
+        sensors = new SensorModel(gm);
         gm.addVelocityListener((vx, vy) -> {
             this.vx = vx;
             this.vy = vy;
@@ -64,10 +95,15 @@ public class Robot {
         gm.addStateListener(this::handleState);
         gm.addHealthListener(this::updateHealth);
         health = 1;
+    }
 
-        d.setOnKeyPressed(this::onKeyPressed);
-        d.setOnKeyReleased(this::onKeyReleased);
-        d.setOnKeyTyped(this::onKeyTyped);
+    /**
+     * Returns true if the robot runs without a display.
+     *
+     * @return  A boolean indicating whether the robot is headless
+     */
+    public boolean isHeadless() {
+        return d == null;
     }
 
     /**
@@ -164,24 +200,18 @@ public class Robot {
         }
     }
 
-    private boolean isAffectedByJammer() {
-        for (Point2D center : d.getJammerCenters()) {
-            if (center.distance(x, y) <= Constants.Obstacle.JAMMER_RANGE + Constants.Robot.RADIUS) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Returns a BufferedImage representing the rendered display frame. If the
      * robot is in the range of a jammer the image will appear to consist of
-     * static.
+     * static. Headless robots have no display, so they cannot call this.
      *
      * @return  Said BufferedImage
      */
     public BufferedImage getDisplayImage() {
-        if (isAffectedByJammer()) {
+        if (isHeadless()) {
+            throw new RuntimeException("A headless robot has no display image");
+        }
+        if (sensors.isJammed(x, y)) {
             return staticImage();
         }
 
@@ -346,14 +376,14 @@ public class Robot {
      * @return the list containing all obstacles and robots within a range of the robot
      */
     public List<DetectedEntity> nearbyEntities() {
-        return d.nearbyEntities(new Point2D(x, y));
+        return sensors.nearbyEntities(x, y);
     }
 
     private void handleState(GameState st) {
-        for (RobotState rs : st.robotStates()) {
-            if (rs.getId() == id) {
-                x = rs.getX();
-                y = rs.getY();
+        for (int i = 0; i < st.getRobotCount(); i++) {
+            if (st.getRobotId(i) == id) {
+                x = st.getRobotX(i);
+                y = st.getRobotY(i);
             }
         }
     }
@@ -373,7 +403,7 @@ public class Robot {
                     BulletDamageEvent event = new BulletDamageEvent(new Bullet(angle.getDamageAngleRadians()), this, Constants.Bullet.DAMAGE);
                     fireEvent(event, bulletListeners);
                 } else {
-                    VaporizerDamageEvent event = new VaporizerDamageEvent(d.vaporizerById(angle.getObstacleId()), this, Constants.Bullet.DAMAGE);
+                    VaporizerDamageEvent event = new VaporizerDamageEvent(sensors.vaporizerById(angle.getObstacleId()), this, Constants.Bullet.DAMAGE);
                     fireEvent(event, vaporizerListeners);
                 }
             }
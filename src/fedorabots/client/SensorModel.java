@@ -0,0 +1,148 @@
+package fedorabots.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fedorabots.client.GameState.HealthMapState;
+import fedorabots.client.GameState.ObstacleState;
+import fedorabots.client.GameState.RobotState;
+import fedorabots.client.event.Vaporizer;
+import fedorabots.client.sensor.DetectedEntity;
+import fedorabots.client.sensor.DetectedObstacle;
+import fedorabots.client.sensor.DetectedObstacle.ObstacleType;
+import fedorabots.client.sensor.DetectedRobot;
+import fedorabots.common.Constants;
+import javafx.scene.paint.Color;
+
+/**
+ * Keeps what a robot's sensors can tell about the game, which is where the
+ * robots it was last sent and the obstacles are, in plain data. It is updated
+ * by the game manager's listeners, so sensors work the same whether or not
+ * the robot has a {@link Display}.
+ */
+class SensorModel {
+
+    private static class SensedRobot {
+        private int x;
+        private int y;
+        private final Color color;
+        private boolean visible = true;
+
+        private SensedRobot(int x, int y, Color color) {
+            this.x = x;
+            this.y = y;
+            this.color = color;
+        }
+    }
+
+    private final Map<Short, SensedRobot> robots = new HashMap<Short, SensedRobot>();
+    private final Map<Byte, ObstacleState> obstacles = new HashMap<Byte, ObstacleState>();
+    // The robots sorted by id, so that states are applied without boxing ids
+    private short[] sortedIds = new short[0];
+    private SensedRobot[] sortedRobots = new SensedRobot[0];
+
+    SensorModel(GameManager gm) {
+        gm.addBeginListener(this::begin);
+        gm.addStateListener(this::update);
+        gm.addHealthListener(this::updateHealths);
+    }
+
+    private synchronized void begin(GameState state) {
+        robots.clear();
+        obstacles.clear();
+        for (RobotState rs : state.robotStates()) {
+            robots.put(rs.getId(), new SensedRobot(rs.getX(), rs.getY(), rs.getColor()));
+        }
+        for (ObstacleState os : state.obstacleStates()) {
+            obstacles.put(os.getId(), os);
+        }
+        sortedIds = new short[robots.size()];
+        sortedRobots = new SensedRobot[robots.size()];
+        int i = 0;
+        for (short id : robots.keySet()) {
+            sortedIds[i++] = id;
+        }
+        Arrays.sort(sortedIds);
+        for (i = 0; i < sortedIds.length; i++) {
+            sortedRobots[i] = robots.get(sortedIds[i]);
+        }
+    }
+
+    private synchronized void update(GameState state) {
+        // Robots are only sent the robots they can see, so hide the others
+        for (SensedRobot robot : sortedRobots) {
+            robot.visible = false;
+        }
+        for (int i = 0; i < state.getRobotCount(); i++) {
+            int index = Arrays.binarySearch(sortedIds, state.getRobotId(i));
+            if (index >= 0) {
+                SensedRobot robot = sortedRobots[index];
+                robot.x = state.getRobotX(i);
+                robot.y = state.getRobotY(i);
+                robot.visible = true;
+            }
+        }
+    }
+
+    private synchronized void updateHealths(Map<Short, HealthMapState> healths) {
+        for (Map.Entry<Short, HealthMapState> entry : healths.entrySet()) {
+            if (entry.getValue().getHealth() == 0) {
+                robots.remove(entry.getKey());
+            }
+        }
+    }
+
+    private static ObstacleType toObstacleType(byte type) {
+        switch (type) {
+            case 0: return ObstacleType.METEORITE;
+            case 1: return ObstacleType.TURRET;
+            case 2: return ObstacleType.VAPORIZER;
+            case 3: return ObstacleType.JAMMER;
+            default: throw new RuntimeException("Cannot find obstacle type for type " + type + ".");
+        }
+    }
+
+    /**
+     * Returns whether a robot at the given position is in range of a jammer.
+     */
+    synchronized boolean isJammed(double x, double y) {
+        for (ObstacleState os : obstacles.values()) {
+            if (os.getType() == 3 && Math.hypot(os.getX() - x, os.getY() - y) <=
+                    Constants.Obstacle.JAMMER_RANGE + Constants.Robot.RADIUS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized Vaporizer vaporizerById(byte id) {
+        ObstacleState obstacle = obstacles.get(id);
+        return new Vaporizer(obstacle.getX(), obstacle.getY());
+    }
+
+    /**
+     * Returns the robots and obstacles within detection range of the given
+     * position, leaving out a robot at the position itself.
+     */
+    synchronized List<DetectedEntity> nearbyEntities(double x, double y) {
+        List<DetectedEntity> entities = new ArrayList<DetectedEntity>();
+        for (SensedRobot robot : robots.values()) {
+            if (!robot.visible) {
+                continue;
+            }
+            double distance = Math.hypot(robot.x - x, robot.y - y);
+            if (distance <= Constants.Robot.DETECTION_RANGE && distance > 5) {
+                entities.add(new DetectedRobot(robot.x, robot.y, robot.color));
+            }
+        }
+        for (ObstacleState obstacle : obstacles.values()) {
+            if (Math.hypot(obstacle.getX() - x, obstacle.getY() - y) <= Constants.Robot.DETECTION_RANGE) {
+                entities.add(new DetectedObstacle(obstacle.getX(), obstacle.getY(), toObstacleType(obstacle.getType())));
+            }
+        }
+        return entities;
+    }
+}
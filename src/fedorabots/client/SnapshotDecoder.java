@@ -0,0 +1,239 @@
+package fedorabots.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rebuilds game states from delta state messages (type 5).
+ *
+ * The server takes each delta against the last snapshot it knows the client
+ * acknowledged, which is not necessarily the last one the client received, so
+ * the last {@link #HISTORY} decoded snapshots are kept around.
+ */
+public class SnapshotDecoder {
+
+    /** The number of decoded snapshots kept, which is more than the server keeps. */
+    public static final int HISTORY = 64;
+    /** The snapshot id acknowledged to start receiving deltas. */
+    public static final int NO_SNAPSHOT = 0xFFFF;
+    /** Bullet velocities are received in units of 1/16 pixel per second. */
+    public static final double VELOCITY_SCALE = 16;
+
+    private static final int ROBOT_POSITION = 1;
+    private static final int ROBOT_ROTATION = 2;
+    private static final int ROBOT_VELOCITY_ANGLE = 4;
+    private static final int ROBOT_ACCEL_ANGLE = 8;
+
+    private final Snapshot[] history = new Snapshot[HISTORY];
+
+    /**
+     * A decoded snapshot. Robots and bullets are kept sorted by id, robots
+     * packed as in the delta encoder and bullets with their position, rotation
+     * and velocity packed into a long, and the arrays of a slot in the history
+     * are reused by each snapshot that lands in it.
+     */
+    private static class Snapshot {
+        private int id = -1;
+        private int time;
+        private int robotCount;
+        private short[] robotIds = new short[16];
+        private long[] robots = new long[16];
+        private int bulletCount;
+        private short[] bulletIds = new short[64];
+        private long[] bullets = new long[64];
+        private int[] bulletTimes = new int[64];
+
+        private void copyFrom(Snapshot baseline) {
+            if (baseline == this) {
+                return;
+            }
+            robotCount = baseline.robotCount;
+            if (robotIds.length < robotCount) {
+                robotIds = new short[baseline.robotIds.length];
+                robots = new long[baseline.robots.length];
+            }
+            System.arraycopy(baseline.robotIds, 0, robotIds, 0, robotCount);
+            System.arraycopy(baseline.robots, 0, robots, 0, robotCount);
+            bulletCount = baseline.bulletCount;
+            if (bulletIds.length < bulletCount) {
+                bulletIds = new short[baseline.bulletIds.length];
+                bullets = new long[baseline.bullets.length];
+                bulletTimes = new int[baseline.bulletTimes.length];
+            }
+            System.arraycopy(baseline.bulletIds, 0, bulletIds, 0, bulletCount);
+            System.arraycopy(baseline.bullets, 0, bullets, 0, bulletCount);
+            System.arraycopy(baseline.bulletTimes, 0, bulletTimes, 0, bulletCount);
+        }
+
+        /**
+         * Returns the index of the robot with the given id, adding it with
+         * everything packed as 0 if there is none.
+         */
+        private int robotIndex(short id) {
+            int i = Arrays.binarySearch(robotIds, 0, robotCount, id);
+            if (i >= 0) {
+                return i;
+            }
+            i = -i - 1;
+            if (robotCount == robotIds.length) {
+                robotIds = Arrays.copyOf(robotIds, robotCount * 2);
+                robots = Arrays.copyOf(robots, robotCount * 2);
+            }
+            System.arraycopy(robotIds, i, robotIds, i + 1, robotCount - i);
+            System.arraycopy(robots, i, robots, i + 1, robotCount - i);
+            robotIds[i] = id;
+            robots[i] = 0;
+            robotCount++;
+            return i;
+        }
+
+        private void removeRobot(short id) {
+            int i = Arrays.binarySearch(robotIds, 0, robotCount, id);
+            if (i >= 0) {
+                robotCount--;
+                System.arraycopy(robotIds, i + 1, robotIds, i, robotCount - i);
+                System.arraycopy(robots, i + 1, robots, i, robotCount - i);
+            }
+        }
+
+        private void putBullet(short id, long packed, int time) {
+            int i = Arrays.binarySearch(bulletIds, 0, bulletCount, id);
+            if (i < 0) {
+                i = -i - 1;
+                if (bulletCount == bulletIds.length) {
+                    bulletIds = Arrays.copyOf(bulletIds, bulletCount * 2);
+                    bullets = Arrays.copyOf(bullets, bulletCount * 2);
+                    bulletTimes = Arrays.copyOf(bulletTimes, bulletCount * 2);
+                }
+                System.arraycopy(bulletIds, i, bulletIds, i + 1, bulletCount - i);
+                System.arraycopy(bullets, i, bullets, i + 1, bulletCount - i);
+                System.arraycopy(bulletTimes, i, bulletTimes, i + 1, bulletCount - i);
+                bulletCount++;
+            }
+            bulletIds[i] = id;
+            bullets[i] = packed;
+            bulletTimes[i] = time;
+        }
+
+        private void removeBullet(short id) {
+            int i = Arrays.binarySearch(bulletIds, 0, bulletCount, id);
+            if (i >= 0) {
+                bulletCount--;
+                System.arraycopy(bulletIds, i + 1, bulletIds, i, bulletCount - i);
+                System.arraycopy(bullets, i + 1, bullets, i, bulletCount - i);
+                System.arraycopy(bulletTimes, i + 1, bulletTimes, i, bulletCount - i);
+            }
+        }
+    }
+
+    /**
+     * Applies a delta body to the snapshot with id <code>baselineId</code>
+     * (or to nothing if it equals <code>snapshotId</code>, which makes the
+     * message a keyframe) and returns the resulting state. Returns null if the
+     * baseline is no longer known, in which case the snapshot must not be
+     * acknowledged.
+     */
+    public GameState decode(int snapshotId, int baselineId, ByteBuffer body) {
+        GameState state = new GameState();
+        return decode(snapshotId, baselineId, body, state) ? state : null;
+    }
+
+    /**
+     * Like {@link #decode(int, int, ByteBuffer)}, but fills the given state
+     * (which is cleared first) instead of creating one, and returns false if
+     * the baseline is no longer known. Once the history is full this creates
+     * no objects, unless a snapshot has more robots or bullets than any before.
+     */
+    public boolean decode(int snapshotId, int baselineId, ByteBuffer body, GameState state) {
+        Snapshot baseline = null;
+        if (baselineId != snapshotId) {
+            baseline = history[baselineId % HISTORY];
+            if (baseline == null || baseline.id != baselineId) {
+                return false;
+            }
+        }
+
+        int time = body.getInt();
+        int changed = body.get() & 0xFF;
+        int removed = body.get() & 0xFF;
+        int spawned = body.getShort() & 0xFFFF;
+        int despawned = body.getShort() & 0xFFFF;
+
+        // The slot can hold the baseline itself, which is then updated in place
+        Snapshot snapshot = history[snapshotId % HISTORY];
+        if (snapshot == null) {
+            snapshot = new Snapshot();
+            history[snapshotId % HISTORY] = snapshot;
+        }
+        snapshot.id = -1;
+        if (baseline == null) {
+            snapshot.robotCount = 0;
+            snapshot.bulletCount = 0;
+        } else {
+            snapshot.copyFrom(baseline);
+        }
+        snapshot.time = time;
+
+        for (int i = 0; i < changed; i++) {
+            int index = snapshot.robotIndex(body.getShort());
+            int mask = body.get();
+            long packed = snapshot.robots[index];
+            if ((mask & ROBOT_POSITION) != 0) {
+                long position = ((body.get() & 0xFFL) << 16) + ((body.get() & 0xFFL) << 8) + (body.get() & 0xFFL);
+                packed = (packed & ~0xFFFFFF000000L) | position << 24;
+            }
+            if ((mask & ROBOT_ROTATION) != 0) {
+                packed = (packed & ~0xFF0000L) | (body.get() & 0xFFL) << 16;
+            }
+            if ((mask & ROBOT_VELOCITY_ANGLE) != 0) {
+                packed = (packed & ~0xFF00L) | (body.get() & 0xFFL) << 8;
+            }
+            if ((mask & ROBOT_ACCEL_ANGLE) != 0) {
+                packed = (packed & ~0xFFL) | (body.get() & 0xFFL);
+            }
+            snapshot.robots[index] = packed;
+        }
+        for (int i = 0; i < removed; i++) {
+            snapshot.removeRobot(body.getShort());
+        }
+        for (int i = 0; i < spawned; i++) {
+            short id = body.getShort();
+            // x and y (12 bits each), rotation, vx and vy
+            long packed = (body.get() & 0xFFL) << 56 | (body.get() & 0xFFL) << 48 | (body.get() & 0xFFL) << 40
+                        | (body.get() & 0xFFL) << 32 | (body.getShort() & 0xFFFFL) << 16 | (body.getShort() & 0xFFFFL);
+            snapshot.putBullet(id, packed, time);
+        }
+        for (int i = 0; i < despawned; i++) {
+            snapshot.removeBullet(body.getShort());
+        }
+
+        snapshot.id = snapshotId;
+        toState(snapshot, state);
+        return true;
+    }
+
+    private static void toState(Snapshot snapshot, GameState state) {
+        state.clear();
+        for (int i = 0; i < snapshot.robotCount; i++) {
+            long packed = snapshot.robots[i];
+            state.addRobot(snapshot.robotIds[i],
+                           (int) (packed >> 36) & 0xFFF,
+                           (int) (packed >> 24) & 0xFFF,
+                           (byte) (packed >> 16),
+                           (byte) (packed >> 8),
+                           (byte) packed);
+        }
+
+        for (int i = 0; i < snapshot.bulletCount; i++) {
+            long packed = snapshot.bullets[i];
+            double dt = (snapshot.time - snapshot.bulletTimes[i]) / 1e3;
+            int x = (int) (packed >>> 52);
+            int y = (int) (packed >>> 40) & 0xFFF;
+            short vx = (short) (packed >> 16);
+            short vy = (short) packed;
+            state.addBullet((int) Math.round(x + vx / VELOCITY_SCALE * dt),
+                            (int) Math.round(y + vy / VELOCITY_SCALE * dt),
+                            (byte) (packed >> 32));
+        }
+    }
+}
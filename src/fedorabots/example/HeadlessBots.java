@@ -0,0 +1,42 @@
+package fedorabots.example;
+
+import fedorabots.client.Robot;
+
+/**
+ * Runs many headless robots in one process, each circling like
+ * {@link CircleBot} and shooting when it senses something nearby.
+ */
+class HeadlessBots {
+
+    public static void main(String[] args) {
+        int robots = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        short roomId = args.length > 1 ? Short.parseShort(args[1]) : 0;
+        for (int i = 0; i < robots; i++) {
+            new Thread(() -> run(roomId), "robot-" + i).start();
+        }
+    }
+
+    private static void run(short roomId) {
+        Robot b = new Robot(true);
+        b.joinNetworkGame(roomId, "127.0.0.1");
+        b.setAcceleration(20, 0);
+        try {
+            while (!b.isDead()) {
+                double velocityAngle = Math.atan2(b.getVy(), b.getVx());
+                double accelerationAngle = velocityAngle + Math.PI / 2;
+
+                b.setAcceleration(20 * Math.cos(accelerationAngle), 20 * Math.sin(accelerationAngle));
+                b.setBlasterRotation((accelerationAngle + Math.PI / 2) * 180 / Math.PI);
+
+                if (b.canShoot() && !b.nearbyEntities().isEmpty()) {
+                    b.shoot();
+                }
+
+                Thread.sleep(40);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -39,7 +39,7 @@ public class Cli {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
         Manager manager = new Manager();
-        TcpServer server = new TcpServer(manager);
+        Server server = Server.create(manager);
         Thread t = new Thread(server);
         t.setDaemon(true);
         t.start();
@@ -83,7 +83,7 @@ public class Cli {
             System.out.println();
             System.out.print("To create a new room please specify the number of robots it will hold: ");
 
-            World w = World.generateScrollingWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
+            World w = World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
             Room room = new Room(getInteger(reader), w);
             List<Obstacle> obstaclesToAdd = new ArrayList<Obstacle>();
             byte obstacleId = 0;
@@ -94,7 +94,7 @@ public class Cli {
             obstacleId += addObstacles(reader, obstaclesToAdd, Jammer.class, obstacleId);
 
             while (!obstaclesToAdd.isEmpty()) {
-                int index = (int) (Math.random() * obstaclesToAdd.size());
+                int index = room.getRandom().nextInt(obstaclesToAdd.size());
                 room.addObstacle(obstaclesToAdd.remove(index));
             }
 
@@ -0,0 +1,80 @@
+package fedorabots.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fedorabots.server.sim.entity.Robot;
+
+/**
+ * Holds the latest command sent for a robot until its room applies it at the
+ * start of a tick.
+ *
+ * <p>The network thread of the robot's connection posts commands and the
+ * room's tick thread takes them, without either waiting for the other. Only
+ * the latest acceleration and rotation are kept, so a client that sends many
+ * updates between two ticks costs the room no more than one that sends a
+ * single update. The slot is guarded by a sequence number that is odd while
+ * a command is being written (a seqlock), which only works because each
+ * robot is written to by a single thread.</p>
+ */
+public class CommandMailbox {
+
+    private volatile int sequence;
+    private volatile double ax, ay, rotation;
+    private final AtomicBoolean shoot = new AtomicBoolean();
+    // The sequence number of the last command applied, only used by the tick thread
+    private int applied;
+
+    /**
+     * Replaces the robot's pending acceleration and rotation.
+     */
+    public void post(double ax, double ay, double rotation) {
+        int seq = sequence;
+        sequence = seq + 1;
+        this.ax = ax;
+        this.ay = ay;
+        this.rotation = rotation;
+        sequence = seq + 2;
+    }
+
+    /**
+     * Asks for the robot to shoot at its next tick. Several requests between
+     * two ticks make it shoot once.
+     */
+    public void shoot() {
+        shoot.set(true);
+    }
+
+    /**
+     * Applies the latest acceleration and rotation to the robot if they
+     * changed since the last call, and returns whether the robot should shoot.
+     * A command that is being written while this runs is left for the next
+     * call rather than waited for.
+     */
+    public boolean apply(Robot robot) {
+        return apply(robot, null, 0);
+    }
+
+    /**
+     * Like {@link #apply(Robot)}, but also records what was applied in the
+     * log (if it is not null) as happening at the given tick.
+     */
+    public boolean apply(Robot robot, ReplayLog log, long tick) {
+        int seq = sequence;
+        if (seq != applied && (seq & 1) == 0) {
+            double ax = this.ax, ay = this.ay, rotation = this.rotation;
+            if (sequence == seq) {
+                applied = seq;
+                robot.setAcceleration(ax, ay);
+                robot.setRotation(rotation);
+                if (log != null) {
+                    log.command(tick, robot.getId(), ax, ay, rotation);
+                }
+            }
+        }
+        boolean shoot = this.shoot.getAndSet(false);
+        if (shoot && log != null) {
+            log.shoot(tick, robot.getId());
+        }
+        return shoot;
+    }
+}
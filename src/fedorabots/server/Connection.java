@@ -0,0 +1,39 @@
+package fedorabots.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connection to a single client, as seen by the
+ * {@link fedorabots.server.Manager}. Connections are handed out by a
+ * {@link fedorabots.server.Server} and are used both as the key for a client and
+ * to send messages to it.
+ */
+public interface Connection {
+
+    /**
+     * Sends the bytes of <code>buf</code> from its beginning up to its limit,
+     * returning false if the connection has been closed. The buffer may be
+     * reused by the caller once this returns.
+     */
+    boolean send(ByteBuffer buf);
+
+    /**
+     * Sends the bytes of <code>header</code> up to its limit followed by the
+     * bytes of <code>body</code> up to its limit, returning false if the
+     * connection has been closed. The header may be reused once this returns,
+     * but the body may be shared with other connections without being copied
+     * and must not be changed afterwards.
+     */
+    boolean send(ByteBuffer header, ByteBuffer body);
+
+    /**
+     * Returns whether the connection is still open.
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection. The manager will be told about it through
+     * {@link fedorabots.server.Manager#handleClosed(Connection)}.
+     */
+    void close();
+}
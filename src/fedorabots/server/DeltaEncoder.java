@@ -0,0 +1,469 @@
+package fedorabots.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fedorabots.server.sim.entity.Bullet;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Encodes the state of a room as deltas against snapshots that clients have
+ * acknowledged.
+ *
+ * <p>Every broadcast captures a snapshot of the quantized robot records and
+ * bullet trajectories, and the last {@link #HISTORY} snapshots are kept. A
+ * client that acknowledged one of them gets only the robot fields that changed
+ * since, the robots that left, and the bullets that were fired, changed course
+ * or disappeared. Clients move bullets along their trajectories themselves.
+ * Clients without a usable baseline, and every client once every
+ * {@link #KEYFRAME_INTERVAL} snapshots, get a keyframe holding the whole
+ * state.</p>
+ *
+ * <p>Deltas are only ever taken against acknowledged snapshots, so state
+ * messages that are dropped on the way (see
+ * {@link fedorabots.server.OutboundQueue}) do not break the client's state.</p>
+ *
+ * <p>Since robots are only sent what they can see (see
+ * {@link fedorabots.server.InterestManager}), each robot's connection keeps
+ * its own {@link View} of the snapshots it was sent, while spectators share
+ * the view of the whole room. Each view reuses the snapshots in its history,
+ * so capturing and filtering snapshots does not create objects for every
+ * robot on every broadcast.</p>
+ */
+public class DeltaEncoder {
+
+    /** The number of snapshots kept to be used as baselines. */
+    public static final int HISTORY = 32;
+    /** The number of snapshots between two keyframes sent to everyone. */
+    public static final int KEYFRAME_INTERVAL = 50;
+    /** The snapshot id a client acknowledges when it has no snapshot yet. */
+    public static final int NO_SNAPSHOT = 0xFFFF;
+    /** Bullet velocities are sent in units of 1/16 pixel per second. */
+    public static final double VELOCITY_SCALE = 16;
+    /** The length of the header that comes before each delta body. */
+    public static final int HEADER_LENGTH = 17;
+
+    public static final int ROBOT_POSITION = 1;
+    public static final int ROBOT_ROTATION = 2;
+    public static final int ROBOT_VELOCITY_ANGLE = 4;
+    public static final int ROBOT_ACCEL_ANGLE = 8;
+    public static final int ROBOT_ALL = 15;
+
+    // Bullets that drift further than this from where clients would move them are sent again
+    private static final double MAX_BULLET_DRIFT = 1.5;
+
+    private final View room = new View(true);
+    private final Map<Connection, View> views = new HashMap<Connection, View>();
+    private Snapshot current;
+    private int nextId;
+    private int sinceKeyframe;
+    private short nextBulletId = 1;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Where a bullet was at some time and how fast it is moving, as sent to
+     * clients. Records are shared between snapshots until the bullet changes
+     * course.
+     */
+    private static class BulletRecord {
+        private final int x, y;
+        private final byte rotation;
+        private final short vx, vy;
+        private final int time;
+
+        private BulletRecord(int x, int y, byte rotation, short vx, short vy, int time) {
+            this.x = x;
+            this.y = y;
+            this.rotation = rotation;
+            this.vx = vx;
+            this.vy = vy;
+            this.time = time;
+        }
+
+        private double xAt(int t) {
+            return x + vx / VELOCITY_SCALE * (t - time) / 1e3;
+        }
+
+        private double yAt(int t) {
+            return y + vy / VELOCITY_SCALE * (t - time) / 1e3;
+        }
+    }
+
+    /**
+     * The robots and bullets of a snapshot, sorted by id. Robots are kept as
+     * their id in the top 16 bits over their packed record, and bullets as
+     * their id in the top 32 bits over the index of their record.
+     */
+    private static class Snapshot {
+        private int id;
+        private int time;
+        private boolean keyframe;
+        private int robotCount;
+        private long[] robots = new long[16];
+        private int bulletCount;
+        private long[] bulletKeys = new long[64];
+        private BulletRecord[] bullets = new BulletRecord[64];
+
+        private void reset(int id, int time, boolean keyframe) {
+            this.id = id;
+            this.time = time;
+            this.keyframe = keyframe;
+            robotCount = 0;
+            Arrays.fill(bullets, 0, bulletCount, null);
+            bulletCount = 0;
+        }
+
+        private void addRobot(short id, long packed) {
+            if (robotCount == robots.length) {
+                robots = Arrays.copyOf(robots, robotCount * 2);
+            }
+            robots[robotCount++] = (long) id << 48 | packed;
+        }
+
+        private void addBullet(short id, BulletRecord record) {
+            if (bulletCount == bullets.length) {
+                bulletKeys = Arrays.copyOf(bulletKeys, bulletCount * 2);
+                bullets = Arrays.copyOf(bullets, bulletCount * 2);
+            }
+            bulletKeys[bulletCount] = (long) id << 32 | bulletCount;
+            bullets[bulletCount] = record;
+            bulletCount++;
+        }
+
+        /**
+         * Sorts the robots and bullets added since the last reset by id.
+         */
+        private void sort() {
+            Arrays.sort(robots, 0, robotCount);
+            Arrays.sort(bulletKeys, 0, bulletCount);
+        }
+
+        private static short robotId(long robot) {
+            return (short) (robot >> 48);
+        }
+
+        private static long packed(long robot) {
+            return robot & 0xFFFFFFFFFFFFL;
+        }
+
+        private static short bulletId(long key) {
+            return (short) (key >> 32);
+        }
+
+        private BulletRecord bulletRecord(long key) {
+            return bullets[(int) key];
+        }
+
+        /**
+         * Returns the index of the key with the given id in the first
+         * <code>count</code> keys, with the id <code>shift</code> bits up, or
+         * -1 if there is none.
+         */
+        private static int search(long[] keys, int count, int shift, short id) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                short midId = (short) (keys[mid] >> shift);
+                if (midId < id) {
+                    low = mid + 1;
+                } else if (midId > id) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int robotIndex(short id) {
+            return search(robots, robotCount, 48, id);
+        }
+
+        private BulletRecord bullet(short id) {
+            int i = search(bulletKeys, bulletCount, 32, id);
+            return i == -1 ? null : bulletRecord(bulletKeys[i]);
+        }
+    }
+
+    /**
+     * The snapshots sent to one or more clients, and the bodies of the deltas
+     * to the latest of them. Robots get their own view, since they are only
+     * sent what they are interested in, while spectators all share the view
+     * of the whole room.
+     */
+    public static class View {
+        private final Snapshot[] history = new Snapshot[HISTORY];
+        // Snapshots in history that belong to this view and can be reused
+        private final boolean[] owned = new boolean[HISTORY];
+        private final boolean shared;
+        private final int[] bodyBaselines = new int[HISTORY];
+        private final ByteBuffer[] bodies = new ByteBuffer[HISTORY];
+        private int bodyCount;
+        private Snapshot current;
+
+        private View(boolean shared) {
+            this.shared = shared;
+        }
+
+        /**
+         * Returns a cleared snapshot to put in the history once it is filled.
+         * The snapshot that was in its slot is too old to be a baseline, so
+         * it is reused unless it belongs to another view.
+         */
+        private Snapshot next(int id, int time, boolean keyframe) {
+            int slot = id % HISTORY;
+            Snapshot snapshot = owned[slot] ? history[slot] : new Snapshot();
+            snapshot.reset(id, time, keyframe);
+            return snapshot;
+        }
+
+        private void add(Snapshot snapshot, boolean own) {
+            current = snapshot;
+            history[snapshot.id % HISTORY] = snapshot;
+            owned[snapshot.id % HISTORY] = own;
+            Arrays.fill(bodies, 0, bodyCount, null);
+            bodyCount = 0;
+        }
+
+        /**
+         * Returns the id of the snapshot that a client which last acknowledged
+         * <code>acked</code> should get a delta against. This is the id of the
+         * current snapshot itself if the client should get a keyframe.
+         */
+        public int baselineFor(int acked) {
+            if (current.keyframe || acked == NO_SNAPSHOT) {
+                return current.id;
+            }
+            Snapshot baseline = history[acked % HISTORY];
+            int age = (current.id - acked) & 0xFFFF;
+            if (baseline == null || baseline.id != acked || age == 0 || age >= HISTORY) {
+                return current.id;
+            }
+            return acked;
+        }
+
+        /**
+         * Returns the body of the delta from <code>baseline</code> (as returned
+         * by {@link #baselineFor(int)}) to the current snapshot. Bodies are
+         * shared by every client with the same baseline and must not be
+         * changed.
+         */
+        public ByteBuffer body(int baseline) {
+            for (int i = 0; i < bodyCount; i++) {
+                if (bodyBaselines[i] == baseline) {
+                    return bodies[i];
+                }
+            }
+            // Bodies of a robot's own view only go to one connection, so they
+            // are not worth a direct buffer
+            ByteBuffer body = encode(current, baseline == current.id ? null : history[baseline % HISTORY], shared);
+            bodyBaselines[bodyCount] = baseline;
+            bodies[bodyCount++] = body;
+            return body;
+        }
+
+        /**
+         * Writes the header of a delta message for a client.
+         *
+         * @param velocity  the 8 bytes of the client's robot's velocity
+         */
+        public void writeHeader(ByteBuffer header, int baseline, byte[] velocity) {
+            header.clear();
+            header.put((byte) 5);
+            header.putShort((short) current.id);
+            header.putShort((short) baseline);
+            header.put(velocity);
+            header.putInt(body(baseline).limit());
+            header.flip();
+        }
+    }
+
+    /**
+     * Captures a new snapshot of the robots and bullets in the room.
+     */
+    public void capture(Collection<Robot> robots, Collection<Bullet> bullets) {
+        int time = (int) ((System.nanoTime() - startTime) / 1000000);
+        boolean keyframe = sinceKeyframe++ % KEYFRAME_INTERVAL == 0;
+        Snapshot previous = current;
+        current = room.next(nextId, time, keyframe);
+        nextId = (nextId + 1) & 0xFFFF;
+        if (nextId == NO_SNAPSHOT) {
+            nextId = 0;
+        }
+
+        for (Robot robot : robots) {
+            current.addRobot(robot.getId(), World.packRobot(robot));
+        }
+        for (Bullet bullet : bullets) {
+            if (bullet.getBulletId() == 0) {
+                bullet.setBulletId(nextBulletId++);
+                if (nextBulletId == 0) {
+                    nextBulletId = 1;
+                }
+            }
+            short vx = (short) Math.round(bullet.getVx() * 1e3 * VELOCITY_SCALE);
+            short vy = (short) Math.round(bullet.getVy() * 1e3 * VELOCITY_SCALE);
+            BulletRecord record = previous == null ? null : previous.bullet(bullet.getBulletId());
+            if (record == null || record.vx != vx || record.vy != vy
+                    || Math.abs(record.xAt(time) - bullet.getRenderX()) > MAX_BULLET_DRIFT
+                    || Math.abs(record.yAt(time) - bullet.getRenderY()) > MAX_BULLET_DRIFT) {
+                byte rotation = (byte) (Math.atan2(bullet.getVy(), bullet.getVx()) / 2 / Math.PI * 255);
+                record = new BulletRecord((int) Math.round(bullet.getRenderX()), (int) Math.round(bullet.getRenderY()),
+                                          rotation, vx, vy, time);
+            }
+            current.addBullet(bullet.getBulletId(), record);
+        }
+        current.sort();
+
+        room.add(current, true);
+        // Forget the views of clients that have not been sent anything for a while
+        views.values().removeIf(view -> ((current.id - view.current.id) & 0xFFFF) >= HISTORY);
+    }
+
+    /**
+     * Returns the id of the last captured snapshot.
+     */
+    public int getSnapshotId() {
+        return current.id;
+    }
+
+    /**
+     * Returns the view of the whole room, which is shared by spectators.
+     */
+    public View getRoomView() {
+        return room;
+    }
+
+    /**
+     * Adds the part of the last captured snapshot that holds the given robots
+     * and bullets to the connection's own view and returns the view. If
+     * <code>interest</code> is null the whole snapshot is added.
+     */
+    public View getView(Connection connection, InterestManager.Interest interest) {
+        View view = views.computeIfAbsent(connection, c -> new View(false));
+        if (interest == null) {
+            view.add(current, false);
+            return view;
+        }
+        Snapshot visible = view.next(current.id, current.time, current.keyframe);
+        List<Robot> robots = interest.getRobots();
+        for (int i = 0; i < robots.size(); i++) {
+            int index = current.robotIndex(robots.get(i).getId());
+            if (index != -1) {
+                long robot = current.robots[index];
+                visible.addRobot(Snapshot.robotId(robot), Snapshot.packed(robot));
+            }
+        }
+        List<Bullet> bullets = interest.getBullets();
+        for (int i = 0; i < bullets.size(); i++) {
+            short id = bullets.get(i).getBulletId();
+            BulletRecord record = current.bullet(id);
+            if (record != null) {
+                visible.addBullet(id, record);
+            }
+        }
+        visible.sort();
+        view.add(visible, true);
+        return view;
+    }
+
+    private static void putPacked(ByteBuffer buf, long packed, int mask) {
+        if ((mask & ROBOT_POSITION) != 0) {
+            buf.put((byte) (packed >> 40));
+            buf.put((byte) (packed >> 32));
+            buf.put((byte) (packed >> 24));
+        }
+        if ((mask & ROBOT_ROTATION) != 0) {
+            buf.put((byte) (packed >> 16));
+        }
+        if ((mask & ROBOT_VELOCITY_ANGLE) != 0) {
+            buf.put((byte) (packed >> 8));
+        }
+        if ((mask & ROBOT_ACCEL_ANGLE) != 0) {
+            buf.put((byte) packed);
+        }
+    }
+
+    private static int changedFields(long from, long to) {
+        long diff = from ^ to;
+        int mask = 0;
+        if ((diff & 0xFFFFFF000000L) != 0) mask |= ROBOT_POSITION;
+        if ((diff & 0xFF0000L) != 0) mask |= ROBOT_ROTATION;
+        if ((diff & 0xFF00L) != 0) mask |= ROBOT_VELOCITY_ANGLE;
+        if ((diff & 0xFFL) != 0) mask |= ROBOT_ACCEL_ANGLE;
+        return mask;
+    }
+
+    private static ByteBuffer encode(Snapshot current, Snapshot baseline, boolean direct) {
+        int length = 10 + current.robotCount * 9
+                + (baseline == null ? 0 : baseline.robotCount * 2 + baseline.bulletCount * 2)
+                + current.bulletCount * 10;
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        buf.putInt(current.time);
+        buf.position(10); // Fill in the counts at the end
+
+        int changed = 0;
+        for (int i = 0; i < current.robotCount; i++) {
+            short id = Snapshot.robotId(current.robots[i]);
+            long packed = Snapshot.packed(current.robots[i]);
+            int previous = baseline == null ? -1 : baseline.robotIndex(id);
+            int mask = previous == -1 ? ROBOT_ALL : changedFields(Snapshot.packed(baseline.robots[previous]), packed);
+            if (mask != 0) {
+                buf.putShort(id);
+                buf.put((byte) mask);
+                putPacked(buf, packed, mask);
+                changed++;
+            }
+        }
+        int removed = 0;
+        if (baseline != null) {
+            for (int i = 0; i < baseline.robotCount; i++) {
+                short id = Snapshot.robotId(baseline.robots[i]);
+                if (current.robotIndex(id) == -1) {
+                    buf.putShort(id);
+                    removed++;
+                }
+            }
+        }
+        int spawned = 0;
+        for (int i = 0; i < current.bulletCount; i++) {
+            short id = Snapshot.bulletId(current.bulletKeys[i]);
+            BulletRecord record = current.bulletRecord(current.bulletKeys[i]);
+            if (baseline == null || baseline.bullet(id) != record) {
+                int x = (int) Math.round(record.xAt(current.time)) & 0xFFF;
+                int y = (int) Math.round(record.yAt(current.time)) & 0xFFF;
+                buf.putShort(id);
+                buf.put((byte) (x >> 4));
+                buf.put((byte) (((x & 0x0F) << 4) + (y >> 8)));
+                buf.put((byte) (y & 0xFF));
+                buf.put(record.rotation);
+                buf.putShort(record.vx);
+                buf.putShort(record.vy);
+                spawned++;
+            }
+        }
+        int despawned = 0;
+        if (baseline != null) {
+            for (int i = 0; i < baseline.bulletCount; i++) {
+                short id = Snapshot.bulletId(baseline.bulletKeys[i]);
+                if (current.bullet(id) == null) {
+                    buf.putShort(id);
+                    despawned++;
+                }
+            }
+        }
+
+        buf.put(4, (byte) changed);
+        buf.put(5, (byte) removed);
+        buf.putShort(6, (short) spawned);
+        buf.putShort(8, (short) despawned);
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,181 @@
+package fedorabots.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Bullet;
+import fedorabots.server.sim.entity.Entity;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Works out which robots and bullets each robot in a room is sent.
+ *
+ * <p>A robot can only detect what is within
+ * {@link fedorabots.common.Constants.Robot#DETECTION_RANGE} of it, so it is
+ * only sent the robots and bullets close enough to matter. Entities become
+ * visible within {@link #ENTER_RADIUS} and stay visible until they are further
+ * than {@link #LEAVE_RADIUS}, so that entities at the edge do not flicker in
+ * and out of the state (and of the deltas). Spectators are still sent the
+ * whole room.</p>
+ *
+ * <p>Interest management can be turned off with
+ * <code>-Dfedorabots.interestManagement=false</code>.</p>
+ */
+public class InterestManager {
+
+    public static final boolean ENABLED =
+        Boolean.parseBoolean(System.getProperty("fedorabots.interestManagement", "true"));
+
+    /** The distance within which robots and bullets become visible. */
+    public static final double ENTER_RADIUS = Constants.Robot.DETECTION_RANGE + 2 * Constants.Robot.RADIUS;
+    /** The distance beyond which visible robots and bullets stop being visible. */
+    public static final double LEAVE_RADIUS = ENTER_RADIUS * 1.25;
+
+    private final Map<Short, Interest> interests = new HashMap<Short, Interest>();
+    private int generation;
+
+    /**
+     * A set of ids kept in an array, which is sorted before it is searched.
+     */
+    private static class IdSet {
+        private short[] ids = new short[16];
+        private int size;
+
+        private void add(short id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        private void sort() {
+            Arrays.sort(ids, 0, size);
+        }
+
+        private boolean contains(short id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * The robots and bullets visible to one robot.
+     */
+    public static class Interest {
+        // The ids visible at the last update and the update before, sorted,
+        // which are swapped at each update
+        private IdSet robotIds = new IdSet();
+        private IdSet bulletIds = new IdSet();
+        private IdSet wasRobot = new IdSet();
+        private IdSet wasBullet = new IdSet();
+        private final List<Robot> robots = new ArrayList<Robot>();
+        private final List<Bullet> bullets = new ArrayList<Bullet>();
+        private Robot viewer;
+        private int updated;
+        // Created once, so that updates do not create a lambda each time
+        private final Consumer<Entity> collector = this::collect;
+
+        private void update(Robot viewer, World world) {
+            IdSet swap = wasRobot;
+            wasRobot = robotIds;
+            robotIds = swap;
+            robotIds.clear();
+            swap = wasBullet;
+            wasBullet = bulletIds;
+            bulletIds = swap;
+            bulletIds.clear();
+            robots.clear();
+            bullets.clear();
+
+            this.viewer = viewer;
+            double x = viewer.getX(), y = viewer.getY();
+            world.forCollidingUnsafe(x - LEAVE_RADIUS, y - LEAVE_RADIUS, 2 * LEAVE_RADIUS, 2 * LEAVE_RADIUS, collector);
+            this.viewer = null;
+            // A robot can always see itself
+            robotIds.add(viewer.getId());
+            robots.add(viewer);
+            robotIds.sort();
+            bulletIds.sort();
+        }
+
+        /**
+         * Adds an entity found near the viewer during an update, if it is
+         * close enough.
+         */
+        private void collect(Entity e) {
+            double dx = e.getX() - viewer.getX(), dy = e.getY() - viewer.getY();
+            double distanceSq = dx * dx + dy * dy;
+            if (distanceSq > LEAVE_RADIUS * LEAVE_RADIUS) {
+                return;
+            }
+            boolean entering = distanceSq <= ENTER_RADIUS * ENTER_RADIUS;
+            if (e instanceof Robot) {
+                Robot robot = (Robot) e;
+                if (robot != viewer && (entering || wasRobot.contains(robot.getId()))) {
+                    robotIds.add(robot.getId());
+                    robots.add(robot);
+                }
+            } else if (e instanceof Bullet) {
+                Bullet bullet = (Bullet) e;
+                if (entering || wasBullet.contains(bullet.getBulletId())) {
+                    bulletIds.add(bullet.getBulletId());
+                    bullets.add(bullet);
+                }
+            }
+        }
+
+        /**
+         * Returns the robots visible to the robot, including itself.
+         */
+        public List<Robot> getRobots() {
+            return robots;
+        }
+
+        /**
+         * Returns the bullets visible to the robot.
+         */
+        public List<Bullet> getBullets() {
+            return bullets;
+        }
+    }
+
+    /**
+     * Works out what each of the robots can see, and forgets the robots that
+     * are no longer in the room. Bullets must already have ids (see
+     * {@link fedorabots.server.DeltaEncoder#capture(Collection, Collection)}).
+     * The caller must synchronize on the world.
+     */
+    public void update(Collection<Robot> robots, World world) {
+        generation++;
+        for (Robot robot : robots) {
+            Interest interest = interests.computeIfAbsent(robot.getId(), id -> new Interest());
+            interest.update(robot, world);
+            interest.updated = generation;
+        }
+        Iterator<Interest> iter = interests.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().updated != generation) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns what the robot with the given id could see at the last update,
+     * or null if it was not in the room.
+     */
+    public Interest get(short robotId) {
+        return interests.get(robotId);
+    }
+}
@@ -4,16 +4,17 @@ import java.awt.Color;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import fedorabots.common.Constants;
-import fedorabots.common.Profiler;
 import javafx.geometry.Point2D;
 import fedorabots.server.Room.GameAlreadyStartedException;
-import fedorabots.server.TcpServer.Handler;
+import fedorabots.server.metrics.Histogram;
+import fedorabots.server.metrics.Metrics;
 import fedorabots.server.sim.Sim;
 import fedorabots.server.sim.entity.Bullet;
 import fedorabots.server.sim.entity.Robot;
@@ -28,20 +29,37 @@ public class Manager {
 
     private Map<Short, Room> rooms; // Room id --> Room
     private Map<Short, Room> robotRooms; // Robot id --> Room
-    private Map<Handler, Short> idMap;
-    private Map<Handler, Room> spectatorMap;
-    private short id = 0;
+    private Map<Connection, Short> idMap;
+    private Map<Connection, Room> spectatorMap;
+    // Last snapshot acknowledged by each connection that receives deltas
+    private Map<Connection, Integer> acks;
+    private AtomicInteger nextId = new AtomicInteger();
+
+    private static final byte[] NO_VELOCITY = new byte[8];
+
+    private static final Histogram GENERATE_STATE_TIME = Metrics.timer("state.generateTime");
+    private static final Histogram INTERESTS_TIME = Metrics.timer("state.interestsTime");
+    private static final Histogram SEND_STATE_TIME = Metrics.timer("state.sendTime");
+
+    /** The type of a message holding several robot commands (129 and 130). */
+    public static final int COMMAND_BATCH = 132;
+    /** The most bytes of commands a command batch can hold. */
+    public static final int MAX_BATCH_LENGTH = 512;
+    /** The length of the longest message a client can send, including its type. */
+    public static final int MAX_MESSAGE_LENGTH = 3 + MAX_BATCH_LENGTH;
 
     private static final Logger LOGGER = Logger.getLogger(Room.class.getName());
 
     public Manager() {
-        rooms = new HashMap<Short, Room>();
-        robotRooms = new HashMap<Short, Room>();
-        // Used both by the main thread (doing simulation) and the networking
-        // thread (adding robots to the room) so make sure to use synchronized
-        // with this
-        idMap = new HashMap<Handler, Short>();
-        spectatorMap = new HashMap<Handler, Room>();
+        // These are used by the network threads and the threads ticking the
+        // rooms at once. Broadcasts go through the connections kept by each
+        // room instead (see Room#getRobotConnections()), so rooms never wait
+        // on each other or on joins to other rooms.
+        rooms = new ConcurrentHashMap<Short, Room>();
+        robotRooms = new ConcurrentHashMap<Short, Room>();
+        idMap = new ConcurrentHashMap<Connection, Short>();
+        spectatorMap = new ConcurrentHashMap<Connection, Room>();
+        acks = new ConcurrentHashMap<Connection, Integer>();
     }
 
 
@@ -53,7 +71,11 @@ public class Manager {
         }
     }
 
-    private void handleRobotJoin(ByteBuffer bb, TcpServer server, Handler handle) throws IOException {
+    private static boolean sendBytes(Connection handle, byte... bytes) {
+        return handle.send(ByteBuffer.wrap(bytes));
+    }
+
+    private void handleRobotJoin(ByteBuffer bb, Server server, Connection handle) throws IOException {
         LOGGER.info("Handling robot join from " + handle + ".");
         short roomId = bb.getShort();
         Color robotColor = new Color(bb.get() & 0xFF, bb.get() & 0xFF, bb.get() & 0xFF);
@@ -62,19 +84,22 @@ public class Manager {
             //ByteBuffer out = ByteBuffer.allocate(1);
             //out.put((byte) 65);
             //out.rewind();
-            handle.getOut().write(65);
-            handle.getOut().flush();
+            sendBytes(handle, (byte) 65);
             throw new ParseException("Cannot add a robot to a nonexistent room with id " + roomId + ".");
         }
-        Point2D location = RoomLayout.getLocation(room);
-        Robot ent = new Robot(id, robotColor,
-                              location.getX(),
-                              location.getY(),
-                              Math.random() * 2 * Math.PI,
-                              Constants.Robot.RADIUS,
-                              Constants.Robot.MASS);
 
-        synchronized (idMap) {
+        // Joins to the same room can be handled by several network threads at
+        // once, so pick the location and start the game while holding the
+        // room's lock
+        synchronized (room) {
+            short id = (short) nextId.getAndIncrement();
+            Point2D location = RoomLayout.getLocation(room);
+            Robot ent = new Robot(id, robotColor,
+                                  location.getX(),
+                                  location.getY(),
+                                  room.getRandom().nextDouble() * 2 * Math.PI,
+                                  Constants.Robot.RADIUS,
+                                  Constants.Robot.MASS);
 
             try {
                 boolean gameStarting = room.addRobot(ent);
@@ -86,136 +111,136 @@ public class Manager {
 
                 robotRooms.put(id, room);
                 idMap.put(handle, id);
+                room.getRobotConnections().put(handle, id);
                 LOGGER.info("creating robot with id " + id + " of handler " + handle);
 
                 if (gameStarting) {
                     LOGGER.fine("Sending initial states to relevant robots");
-                    ByteBuffer message = room.initialState();
-                    Iterator<Map.Entry<Handler, Short>> iter = idMap.entrySet().iterator();
-                    while(iter.hasNext()){
-                    	Map.Entry<Handler, Short> connection = iter.next();
-                    	if (room.equals(robotRooms.get(connection.getValue()))) {
-                            message.rewind();
-                            if(!TcpServer.sendToHandle(connection.getKey(), message, this))
-                            	iter.remove();
-                        }
-                    }
-                    Iterator<Map.Entry<Handler, Room>> iter2 = spectatorMap.entrySet().iterator();
-                    while(iter2.hasNext()){
-                    	Map.Entry<Handler, Room> connection = iter2.next();
-                    	if (room.equals(connection.getValue())) {
-                            message.rewind();
-                            if(!TcpServer.sendToHandle(connection.getKey(), message, this))
-                            	iter2.remove();
-                        }
-                    }
+                    broadcastBuf(server, room, room.initialState());
 
                     LOGGER.fine("Telling robots in room with id " + room.getId() + " that the game has begun");
-                    Iterator<Map.Entry<Handler, Short>> iter3 = idMap.entrySet().iterator();
-                    while(iter3.hasNext()){
-                    	Map.Entry<Handler, Short> connection = iter3.next();
-                    	if (room.equals(robotRooms.get(connection.getValue()))) {
-                            LOGGER.finer("Telling " + handle);
-                            connection.getKey().getOut().write(64);
-                            short id2 = connection.getValue();
-                            connection.getKey().getOut().write((id2 >> 8) & 0xff);
-                            connection.getKey().getOut().write(id2 & 0xff);
-                            connection.getKey().getOut().flush();
-                        }
+                    for (Map.Entry<Connection, Short> connection : room.getRobotConnections().entrySet()) {
+                        LOGGER.finer("Telling " + connection.getKey());
+                        short id2 = connection.getValue();
+                        sendBytes(connection.getKey(), (byte) 64, (byte) (id2 >> 8), (byte) id2);
                     }
                 }
             } catch (GameAlreadyStartedException e) {
-                handle.getOut().write(66);
-                handle.getOut().flush();
+                sendBytes(handle, (byte) 66);
                 throw new ParseException("Robot with id " + id + " tried to join a room with id " +
                                          room.getId() + " that already started its game");
             }
         }
-        id++;
     }
 
-    private void handleRobotUpdate(ByteBuffer bb, TcpServer server, Handler handle) throws IOException {
-        LOGGER.fine("Handling robot update from " + handle + ".");
-        short robotId = bb.getShort();
-        synchronized (idMap) {
-            if (robotId != idMap.get(handle)) {
-                throw new ParseException(handle + " does not have permission to edit robot with id " + robotId +
-                                         " (the handler can only edit robot with id " + idMap.get(handle) + ").");
-            }
+    /**
+     * Returns the mailbox of the robot with the given id, checking that the
+     * robot belongs to the connection.
+     */
+    private CommandMailbox mailboxFor(short robotId, Connection handle) {
+        Short ownId = idMap.get(handle);
+        if (ownId == null || robotId != ownId) {
+            throw new ParseException(handle + " does not have permission to edit robot with id " + robotId +
+                                     " (the handler can only edit robot with id " + ownId + ").");
         }
-        Robot ent = robotRooms.get(robotId).getRobot(robotId);
-        if (ent == null) {
+        CommandMailbox mailbox = robotRooms.get(robotId).getMailbox(robotId);
+        if (mailbox == null) {
             throw new ParseException("Invalid robot ID " + robotId + ".");
         }
+        return mailbox;
+    }
+
+    private void handleRobotUpdate(ByteBuffer bb, Server server, Connection handle) throws IOException {
+        LOGGER.fine("Handling robot update from " + handle + ".");
+        short robotId = bb.getShort();
+        CommandMailbox mailbox = mailboxFor(robotId, handle);
 
         double ax = bb.getFloat()/1e6;
         double ay = bb.getFloat()/1e6;
         if (!Double.isFinite(ax) || !Double.isFinite(ay)) {
             throw new ParseException(handle + " set a robot with id " + robotId + " to have a non-finite acceleration.");
         }
-        ent.setAcceleration(ax, ay);
-        ent.setRotation((bb.getShort() & 0xFFFF) * 1.0 / (Short.MAX_VALUE-Short.MIN_VALUE) * 2 * Math.PI);
+        // Applied by the room at its next tick
+        mailbox.post(ax, ay, (bb.getShort() & 0xFFFF) * 1.0 / (Short.MAX_VALUE-Short.MIN_VALUE) * 2 * Math.PI);
     }
 
-    private void handleRobotShoot(ByteBuffer bb, TcpServer server, Handler handle) throws IOException {
-        LOGGER.fine("Handling robot shoot from " + handle + ".");
-        short robotId = bb.getShort();
-        synchronized (idMap) {
-            if (robotId != idMap.get(handle)) {
-                throw new ParseException(handle + " does not have permission to edit robot with id " + robotId +
-                                         " (the handler can only edit robot with id " + idMap.get(handle) + ").");
-            }
+    /**
+     * Handles each command of a batch in order. The commands are read in
+     * place from the message's buffer.
+     */
+    private void handleCommandBatch(ByteBuffer bb, Server server, Connection handle) throws IOException {
+        int length = bb.getShort() & 0xFFFF;
+        int end = bb.position() + length;
+        if (end > bb.limit()) {
+            throw new ParseException("Command batch from " + handle + " is longer than its message.");
         }
-
-        Room room = robotRooms.get(robotId);
-        Robot robot = room.getRobot(robotId);
-        if (robot == null) {
-            throw new ParseException("Invalid robot ID " + robotId + ".");
+        int limit = bb.limit();
+        bb.limit(end);
+        try {
+            while (bb.hasRemaining()) {
+                int type = bb.get() & 0xFF;
+                if (type != 129 && type != 130) {
+                    throw new ParseException("Command batch from " + handle + " holds a message of type " + type + ".");
+                }
+                if (bb.remaining() < messageLength(type)) {
+                    throw new ParseException("Command batch from " + handle + " ends in the middle of a command.");
+                }
+                if (type == 129) {
+                    handleRobotUpdate(bb, server, handle);
+                } else {
+                    handleRobotShoot(bb, server, handle);
+                }
+            }
+        } finally {
+            bb.limit(limit);
         }
+    }
 
-        double rotation = -robot.getRotation() + Math.PI / 2;
-        double vx = Constants.Bullet.VELOCITY/1e3 * Math.cos(rotation);
-        double vy = - (Constants.Bullet.VELOCITY/1e3 * Math.sin(rotation));
-        double dist = (Constants.Robot.RADIUS + Constants.Bullet.RADIUS) * 1.3;
-        double x = robot.getX() + dist * Math.cos(rotation);
-        double y = robot.getY() - dist * Math.sin(rotation);
-        room.addBullet(new Bullet(x, y, Constants.Bullet.RADIUS, Constants.Bullet.MASS, vx, vy));
+    private void handleRobotShoot(ByteBuffer bb, Server server, Connection handle) throws IOException {
+        LOGGER.fine("Handling robot shoot from " + handle + ".");
+        short robotId = bb.getShort();
+        mailboxFor(robotId, handle).shoot();
     }
 
-    private void handleDisplayJoin(ByteBuffer bb, TcpServer server, Handler handle) throws IOException {
+    private void handleDisplayJoin(ByteBuffer bb, Server server, Connection handle) throws IOException {
         LOGGER.fine("Handling display join from " + handle + ".");
         short roomId = bb.getShort();
 
         Room room = rooms.get(roomId);
         if (room == null) {
-            handle.getOut().write(65);
-            handle.getOut().flush();
-            throw new ParseException("Cannot add a robot to a nonexistent room with id " + id + ".");
-        }
-
-        // Send the initial state to the display if the game has started already
-        if (room.hasStarted()) {
-            ByteBuffer message = room.initialState();
-            message.rewind();
-            handle.getOut().write(message.array(), 0, message.limit());
-            handle.getOut().flush();
+            sendBytes(handle, (byte) 65);
+            throw new ParseException("Cannot add a robot to a nonexistent room with id " + roomId + ".");
         }
 
-        handle.getOut().flush();
-
+        // Hold the room's lock so that the game cannot start in between, which
+        // would send the display the initial state twice or not at all
+        synchronized (room) {
+            // Send the initial state to the display if the game has started already
+            if (room.hasStarted()) {
+                ByteBuffer message = room.initialState();
+                handle.send(message);
+            }
 
-        synchronized (idMap) {
             spectatorMap.put(handle, room);
+            room.getSpectators().add(handle);
         }
     }
 
-    public void handleSent(ByteBuffer bb, TcpServer server, Handler handle) throws IOException {
+    private void handleSnapshotAck(ByteBuffer bb, Server server, Connection handle) {
+        LOGGER.finest("Handling snapshot ack from " + handle + ".");
+        acks.put(handle, bb.getShort() & 0xFFFF);
+    }
+
+    public void handleSent(ByteBuffer bb, Server server, Connection handle) throws IOException {
         int mType = bb.get() & 0xFF;
         switch (mType) {
             case 128: handleRobotJoin(bb, server, handle); break;
             case 129: handleRobotUpdate(bb, server, handle); break;
             case 130: handleRobotShoot(bb, server, handle); break;
+            case 131: handleSnapshotAck(bb, server, handle); break;
+            case 132: handleCommandBatch(bb, server, handle); break;
             case 192: handleDisplayJoin(bb, server, handle); break;
+            case 193: handleSnapshotAck(bb, server, handle); break;
             default:  throw new ParseException("Unknown message type " + mType + ".");
         }
     }
@@ -225,85 +250,155 @@ public class Manager {
             case 128: return 5;
             case 129: return 12;
             case 130: return 2;
+            case 131: return 2;
+            case 132: return 2; // Followed by the number of bytes given by these two
             case 192: return 2;
+            case 193: return 2;
             default:  throw new ParseException("Unknown message type " + mType + ".");
         }
     }
 
-    public void broadcastRoomState(TcpServer server, Room room, Collection<Robot> robots, World world) {
-        Profiler.time("Generate state");
-        Profiler.time("Get bullets");
+    /**
+     * Returns the length of a message (not counting its type) given its type
+     * and the {@link #messageLength(int)} bytes after its type, which start at
+     * <code>offset</code> in <code>buf</code>. This only differs from
+     * {@link #messageLength(int)} for command batches, whose length comes
+     * first.
+     */
+    public static int messageLength(int mType, ByteBuffer buf, int offset) {
+        int length = messageLength(mType);
+        if (mType == COMMAND_BATCH) {
+            int batchLength = buf.getShort(offset) & 0xFFFF;
+            if (batchLength > MAX_BATCH_LENGTH) {
+                throw new ParseException("Command batch of " + batchLength + " bytes is too long.");
+            }
+            length += batchLength;
+        }
+        return length;
+    }
+
+    /**
+     * Sends the state of the room to every robot and spectator in it.
+     *
+     * <p>Robots are only sent what they can see, as worked out by the room's
+     * {@link fedorabots.server.InterestManager}, and spectators are sent the
+     * whole room. Clients that have acknowledged a snapshot get a delta from
+     * the room's {@link fedorabots.server.DeltaEncoder}, and the others get a
+     * full state message. Bodies are encoded once per view and shared by
+     * every recipient of that view (all spectators share one), and each
+     * recipient only gets its own copy of the header (which holds the
+     * recipient's velocity).</p>
+     */
+    public void broadcastRoomState(Server server, Room room, Collection<Robot> robots, World world) {
+        long start = GENERATE_STATE_TIME.start();
         Collection<Bullet> bullets = world.getBullets();
-        Profiler.timeEnd("Get bullets");
-        ByteBuffer msgBuf = ByteBuffer.allocate(World.stateLength(robots, bullets) + 4);
-        msgBuf.put((byte) 1);
-        msgBuf.put((byte) robots.size());
-        msgBuf.putShort((short) bullets.size());
-        msgBuf.position(msgBuf.position() + 8); // Skip velocity states
-        world.writeState(msgBuf, robots);
-        world.writeBulletStates(msgBuf, bullets);
+        DeltaEncoder deltas = room.getDeltaEncoder();
+        deltas.capture(robots, bullets);
+        InterestManager interests = room.getInterestManager();
+        if (InterestManager.ENABLED) {
+            long interestStart = INTERESTS_TIME.start();
+            interests.update(robots, world);
+            INTERESTS_TIME.stop(interestStart);
+        }
+        ByteBuffer[] fullBody = new ByteBuffer[1];
+        ByteBuffer header = ByteBuffer.allocate(DeltaEncoder.HEADER_LENGTH);
 
         Map<Short, byte[]> velocityStates = world.velocityStates(robots);
-        Profiler.timeEnd("Generate state");
-
-        synchronized (idMap) {
-            Profiler.time("Send state");
-            Iterator<Map.Entry<Handler, Short>> iter = idMap.entrySet().iterator();
-            while(iter.hasNext()){
-            	Map.Entry<Handler, Short> connection = iter.next();
-            	if (room.equals(robotRooms.get(connection.getValue()))) {
-                    short id = connection.getValue();
-                    if (velocityStates.get(id) != null) {
-                        msgBuf.position(4);
-                        msgBuf.put(velocityStates.get(id));
-                    }
-                    msgBuf.rewind();
-                    if(!TcpServer.sendToHandle(connection.getKey(), msgBuf, this))
-                    	iter.remove();
-                }
-            }
-            Iterator<Map.Entry<Handler, Room>> iter2 = spectatorMap.entrySet().iterator();
-            while(iter2.hasNext()){
-            	Map.Entry<Handler, Room> connection = iter2.next();
-            	if (room.equals(connection.getValue())) {
-                    msgBuf.rewind();
-                    if(!TcpServer.sendToHandle(connection.getKey(), msgBuf, this))
-                    	iter.remove();
-                }
+        GENERATE_STATE_TIME.stop(start);
+
+        start = SEND_STATE_TIME.start();
+        Iterator<Map.Entry<Connection, Short>> iter = room.getRobotConnections().entrySet().iterator();
+        while(iter.hasNext()){
+        	Map.Entry<Connection, Short> connection = iter.next();
+            byte[] velocity = velocityStates.get(connection.getValue());
+            // Robots that died see the whole room, like spectators
+            InterestManager.Interest interest = InterestManager.ENABLED ? interests.get(connection.getValue()) : null;
+            if(!sendState(connection.getKey(), velocity != null ? velocity : NO_VELOCITY, header, deltas,
+                          deltas.getView(connection.getKey(), interest), fullBody, interest, robots,
+                          bullets, world))
+            	iter.remove();
+        }
+        Iterator<Connection> iter2 = room.getSpectators().iterator();
+        while(iter2.hasNext()){
+        	Connection connection = iter2.next();
+            if(!sendState(connection, NO_VELOCITY, header, deltas, deltas.getRoomView(), fullBody,
+                          null, robots, bullets, world))
+            	iter2.remove();
+        }
+        SEND_STATE_TIME.stop(start);
+    }
 
+    /**
+     * Sends a delta from <code>view</code> if the connection has acknowledged
+     * a snapshot and a full state otherwise. A connection without an
+     * <code>interest</code> is sent the whole room, whose full state body is
+     * only encoded once some connection needs it, and is then kept in
+     * <code>fullBody</code>.
+     */
+    private boolean sendState(Connection connection, byte[] velocity, ByteBuffer header, DeltaEncoder deltas,
+                              DeltaEncoder.View view, ByteBuffer[] fullBody, InterestManager.Interest interest,
+                              Collection<Robot> robots, Collection<Bullet> bullets, World world) {
+        Integer acked = acks.get(connection);
+        if (acked != null) {
+            int baseline = view.baselineFor(acked);
+            view.writeHeader(header, baseline, velocity);
+            return connection.send(header, view.body(baseline));
+        }
+
+        ByteBuffer body;
+        if (interest != null) {
+            robots = interest.getRobots();
+            bullets = interest.getBullets();
+            body = fullStateBody(robots, bullets, world, false);
+        } else {
+            if (fullBody[0] == null) {
+                fullBody[0] = fullStateBody(robots, bullets, world, true);
             }
-            Profiler.timeEnd("Send state");
+            body = fullBody[0];
         }
+        header.clear();
+        header.put((byte) 1);
+        header.put((byte) robots.size());
+        header.putShort((short) bullets.size());
+        header.put(velocity);
+        header.flip();
+        return connection.send(header, body);
     }
 
-    public void broadcastBuf(TcpServer server, Room room, ByteBuffer msgBuf) {
-        synchronized (idMap) {
-        	Iterator<Map.Entry<Handler, Short>> iter = idMap.entrySet().iterator();
-        	while(iter.hasNext()){
-        		Map.Entry<Handler, Short> connection = iter.next();
-        		if (room.equals(robotRooms.get(connection.getValue()))) {
-                    msgBuf.rewind();
-                    if(!TcpServer.sendToHandle(connection.getKey(), msgBuf, this))
-                    	iter.remove();
-                }
-        	}
-        	Iterator<Map.Entry<Handler, Room>> iter2 = spectatorMap.entrySet().iterator();
-        	while(iter.hasNext()){
-        		Map.Entry<Handler, Room> connection = iter2.next();
-        		if (room.equals(connection.getValue())) {
-                    msgBuf.rewind();
-                    if(!TcpServer.sendToHandle(connection.getKey(), msgBuf, this))
-                    	iter2.remove();
-                }
-        	}
+    /**
+     * Encodes a full state body. Only bodies shared by several connections
+     * are put in a direct buffer, since the body of a robot's interest only
+     * goes to that robot.
+     */
+    private static ByteBuffer fullStateBody(Collection<Robot> robots, Collection<Bullet> bullets, World world,
+                                            boolean shared) {
+        int length = World.stateLength(robots, bullets) - 8;
+        ByteBuffer body = shared ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        world.writeState(body, robots);
+        world.writeBulletStates(body, bullets);
+        body.flip();
+        return body;
+    }
+
+    public void broadcastBuf(Server server, Room room, ByteBuffer msgBuf) {
+        Iterator<Connection> iter = room.getRobotConnections().keySet().iterator();
+        while(iter.hasNext()){
+            msgBuf.rewind();
+            if(!iter.next().send(msgBuf))
+            	iter.remove();
+        }
+        Iterator<Connection> iter2 = room.getSpectators().iterator();
+        while(iter2.hasNext()){
+            msgBuf.rewind();
+            if(!iter2.next().send(msgBuf))
+            	iter2.remove();
         }
     }
 
     public void addRoom(Room room) {
         room.setManager(this);
-        synchronized (rooms) {
-            rooms.put(room.getId(), room);
-        }
+        rooms.put(room.getId(), room);
+        room.registerMetrics();
     }
 
     /**
@@ -315,52 +410,66 @@ public class Manager {
         if (room.occupancy() > 0) {
             return false;
         }
-        synchronized (rooms) {
-            rooms.remove(room.getId(), room);
+        if (rooms.remove(room.getId(), room)) {
+            room.unregisterMetrics();
         }
         return true;
     }
 
     /**
-     * Runs an infite loop where each room will tick.
+     * Runs an infite loop where each room will tick. Rooms are ticked in
+     * parallel by a {@link fedorabots.server.RoomScheduler}, each on its own
+     * schedule.
      *
      * @param server      The server to send state update messages through
      * @param reloadRooms Whether rooms should be recreated once they end
      */
-    public void loopTickAllRooms(TcpServer server, boolean reloadRooms) {
+    public void loopTickAllRooms(Server server, boolean reloadRooms) {
+        RoomScheduler scheduler = new RoomScheduler();
         while (true) {
-            long totalTickTime = 0;
-            synchronized (rooms) {
-                for (Map.Entry<Short, Room> ent : rooms.entrySet()) {
-                    Room room = ent.getValue();
-                    if (room.hasStarted()) {
-                        totalTickTime += room.tick(server);
-                    }
-                    if (reloadRooms && room.hasEnded()) {
-                        LOGGER.info("Resetting room with id " + room.getId());
-                        ent.setValue(room.resetCopy());
+            long now = System.nanoTime();
+            long wakeAt = now + Sim.MIN_TICK_LENGTH;
+            for (Map.Entry<Short, Room> ent : rooms.entrySet()) {
+                Room room = ent.getValue();
+                if (reloadRooms && room.hasEnded() && !scheduler.isTicking(room)) {
+                    LOGGER.info("Resetting room with id " + room.getId());
+                    scheduler.forget(room);
+                    room = room.resetCopy();
+                    ent.setValue(room);
+                    room.registerMetrics();
+                }
+                if (room.hasStarted()) {
+                    long due = scheduler.schedule(room, server, now);
+                    if (due - wakeAt < 0) {
+                        wakeAt = due;
                     }
                 }
             }
 
             try {
-                Thread.sleep(Math.max(0, (Sim.MIN_TICK_LENGTH-totalTickTime)/(long)1e6));
+                scheduler.awaitUntil(wakeAt);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    public void handleClosed(Handler handler) {
-        synchronized (idMap) {
-            Short robotId = idMap.get(handler);
-            if (robotId != null) {
-                if (robotRooms.get(robotId).removeRobotById(robotId)) {
+    public void handleClosed(Connection handler) {
+        Short robotId = idMap.remove(handler);
+        if (robotId != null) {
+            // Forget the room too, so that it is not kept alive after the game
+            Room room = robotRooms.remove(robotId);
+            if (room != null) {
+                room.getRobotConnections().remove(handler);
+                if (room.removeRobotById(robotId)) {
                     LOGGER.finer("Removed robot with id " + robotId + " from the room since the client closed its session");
                 }
-                idMap.remove(handler);
             }
-            spectatorMap.remove(handler);
         }
+        Room spectated = spectatorMap.remove(handler);
+        if (spectated != null) {
+            spectated.getSpectators().remove(handler);
+        }
+        acks.remove(handler);
     }
 }
@@ -0,0 +1,360 @@
+package fedorabots.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fedorabots.common.Util;
+import fedorabots.server.Manager.ParseException;
+
+/**
+ * A server that handles connections with non-blocking channels on a few event
+ * loop threads, instead of one thread per connection like the
+ * {@link fedorabots.server.TcpServer}.
+ *
+ * <p>Each event loop owns a selector and the connections assigned to it. The
+ * first loop also accepts new connections and hands them out to the loops in
+ * turn. Messages are read into a direct buffer per connection and split up
+ * using {@link fedorabots.server.Manager#messageLength(int)}. Messages sent to
+ * a connection are queued in an {@link fedorabots.server.OutboundQueue} and
+ * written by its event loop.</p>
+ */
+public class NioServer implements Server {
+
+    /** The size of each connection's read buffer, which must hold the longest message. */
+    public static final int READ_BUFFER_SIZE = Math.max(4096, Manager.MAX_MESSAGE_LENGTH);
+
+    private final Manager manager;
+    private final ServerSocketChannel ssc;
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    private static final Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+
+    /**
+     * Creates a server listening on <code>port</code> that runs
+     * <code>nLoops</code> event loops.
+     */
+    public NioServer(Manager manager, int port, int nLoops) throws IOException {
+        this.manager = manager;
+        ssc = ServerSocketChannel.open();
+        ssc.configureBlocking(false);
+        ssc.bind(new InetSocketAddress(port));
+        loops = new EventLoop[nLoops];
+        for (int i = 0; i < nLoops; i++) {
+            loops[i] = new EventLoop();
+        }
+        ssc.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Creates a server on the default port. The number of event loops is
+     * given by the <code>fedorabots.nioThreads</code> system property, and
+     * defaults to half the number of processors.
+     */
+    public NioServer(Manager manager) throws IOException {
+        this(manager, TcpServer.PORT, Integer.getInteger("fedorabots.nioThreads",
+                                                         Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    /**
+     * Runs the first event loop on the calling thread and the others on
+     * daemon threads.
+     */
+    @Override
+    public void run() {
+        LOGGER.info("NIO server starting on port " + ssc.socket().getLocalPort() + " with " + loops.length +
+                    " event loops");
+        for (int i = 1; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        loops[0].run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ssc.close();
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = ssc.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            SocketChannel accepted = channel;
+            loop.execute(() -> loop.register(accepted));
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean closed;
+
+        private EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on the loop's thread before it next selects.
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void shutdown() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                NioConnection connection = new NioConnection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                LOGGER.info("created connection " + connection);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not register accepted connection", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Error while selecting", e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.SEVERE, "Error while accepting", e);
+                        }
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.SEVERE, "Error while running connection " + connection, e);
+                        connection.close();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Could not close selector");
+            }
+        }
+    }
+
+    private class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final String address;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final OutboundQueue outbound = new OutboundQueue();
+        // Messages taken from the queue that have not been fully written yet
+        private final ByteBuffer[] writing = new ByteBuffer[16];
+        private int numWriting;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private NioConnection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            address = channel.getRemoteAddress().toString();
+        }
+
+        /**
+         * Reads what is available from the channel and passes every complete
+         * message to the manager.
+         */
+        private void read() throws IOException {
+            if (channel.read(in) == -1) {
+                LOGGER.info("Client with connection " + this + " left the game.");
+                close();
+                return;
+            }
+            in.flip();
+            while (in.hasRemaining()) {
+                int start = in.position();
+                int type = in.get(start) & 0xFF;
+                int numToRead;
+                try {
+                    numToRead = Manager.messageLength(type);
+                    if (in.remaining() < numToRead + 1) {
+                        break;
+                    }
+                    numToRead = Manager.messageLength(type, in, start + 1);
+                } catch (ParseException e) {
+                    LOGGER.log(Level.WARNING, "bad message type", e);
+                    in.position(start + 1);
+                    continue;
+                }
+                if (in.remaining() < numToRead + 1) {
+                    break;
+                }
+                ByteBuffer bb = in.slice();
+                bb.limit(numToRead + 1);
+                in.position(start + numToRead + 1);
+
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("Created buffer " + Util.toString(bb));
+                }
+                try {
+                    manager.handleSent(bb, NioServer.this, this);
+                } catch (ParseException e) {
+                    LOGGER.log(Level.WARNING, "bad message", e);
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            in.compact();
+        }
+
+        /**
+         * Writes as many queued messages as the channel will take in gathering
+         * writes, and waits for the channel to be writable if some are left.
+         */
+        private void flush() throws IOException {
+            while (true) {
+                numWriting += outbound.poll(writing, numWriting);
+                if (numWriting == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                channel.write(writing, 0, numWriting);
+                int done = 0;
+                while (done < numWriting && !writing[done].hasRemaining()) {
+                    done++;
+                }
+                System.arraycopy(writing, done, writing, 0, numWriting - done);
+                Arrays.fill(writing, numWriting - done, numWriting, null);
+                numWriting -= done;
+                if (numWriting > 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        private void scheduledFlush() {
+            flushScheduled.set(false);
+            if (key.isValid()) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write to socket from " + this, e);
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Queues the message to be written by the connection's event loop, so
+         * this never blocks on the network.
+         */
+        @Override
+        public boolean send(ByteBuffer buf) {
+            return !closed && queued(outbound.offer(buf));
+        }
+
+        @Override
+        public boolean send(ByteBuffer header, ByteBuffer body) {
+            return !closed && queued(outbound.offer(header, body));
+        }
+
+        private boolean queued(boolean offered) {
+            if (!offered) {
+                LOGGER.warning("Closing " + this + " since it fell too far behind");
+                close();
+                return false;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::scheduledFlush);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                outbound.close();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warning("Could not close socket");
+            }
+            // Tell the manager from the loop, since a connection can be closed
+            // by a broadcast while its room is in the middle of a tick
+            loop.execute(() -> manager.handleClosed(this));
+        }
+
+        @Override
+        public String toString() {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package fedorabots.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import fedorabots.server.metrics.Counter;
+import fedorabots.server.metrics.Histogram;
+import fedorabots.server.metrics.Metrics;
+
+/**
+ * A bounded queue of messages waiting to be written to a client.
+ *
+ * <p>Messages are copied when they are offered, so the caller may reuse its
+ * buffer right away. A message can also be made of a small header that is
+ * copied and a body that is shared with other queues without copying.
+ * Polling a message yields its header and body as separate buffers, which are
+ * meant to be written with one gathering write.</p>
+ *
+ * <p>When a client falls so far behind that the queue is full, the oldest
+ * queued state message (type 1 or 5) is dropped to make room, since a newer state
+ * supersedes it. If there is no state message to drop the offer fails, and
+ * the client should be disconnected.</p>
+ *
+ * <p>Every queue counts the bytes it queues into the metric
+ * <code>outbound.bytes.&lt;type&gt;</code> of the message's type, the number of
+ * messages it holds after each offer into <code>outbound.queueDepth</code>,
+ * and the state messages it drops into <code>outbound.dropped</code>.</p>
+ */
+public class OutboundQueue {
+
+    /**
+     * The default number of messages a queue holds, which can be set with the
+     * <code>fedorabots.outboundQueueSize</code> system property.
+     */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("fedorabots.outboundQueueSize", 64);
+
+    private static final Counter[] BYTES_BY_TYPE = new Counter[256];
+    private static final Histogram DEPTH = Metrics.histogram("outbound.queueDepth");
+    private static final Counter DROPPED = Metrics.counter("outbound.dropped");
+
+    private final ArrayDeque<Message> messages;
+    private final int capacity;
+    private boolean closed;
+    private long dropped;
+
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+        messages = new ArrayDeque<Message>(capacity);
+    }
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    private static class Message {
+        private final ByteBuffer header;
+        private final ByteBuffer body;
+
+        private Message(ByteBuffer header, ByteBuffer body) {
+            this.header = header;
+            this.body = body;
+        }
+
+        private boolean isState() {
+            return header.get(0) == 1 || header.get(0) == 5;
+        }
+
+        private int length() {
+            return header.remaining() + (body == null ? 0 : body.remaining());
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer buf) {
+        ByteBuffer src = buf.duplicate();
+        src.position(0);
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src);
+        copy.flip();
+        return copy;
+    }
+
+    private boolean dropOldestState() {
+        Iterator<Message> iter = messages.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isState()) {
+                iter.remove();
+                dropped++;
+                DROPPED.add(1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues a copy of the bytes of <code>buf</code> from its beginning up to
+     * its limit. Returns false if the queue is closed or is full of messages
+     * that cannot be dropped.
+     */
+    public boolean offer(ByteBuffer buf) {
+        return add(new Message(copy(buf), null));
+    }
+
+    /**
+     * Queues a message made of a copy of the bytes of <code>header</code> up
+     * to its limit followed by all of <code>body</code> up to its limit. The
+     * body is not copied, so it must not be changed after it is offered.
+     * Returns false if the queue is closed or is full of messages that cannot
+     * be dropped.
+     */
+    public boolean offer(ByteBuffer header, ByteBuffer body) {
+        ByteBuffer shared = body.asReadOnlyBuffer();
+        shared.position(0);
+        return add(new Message(copy(header), shared));
+    }
+
+    private synchronized boolean add(Message message) {
+        if (closed) {
+            return false;
+        }
+        if (messages.size() >= capacity && !dropOldestState()) {
+            return false;
+        }
+        messages.add(message);
+        notifyAll();
+        bytes(message.header.get(0) & 0xFF).add(message.length());
+        DEPTH.record(messages.size());
+        return true;
+    }
+
+    private static Counter bytes(int type) {
+        Counter counter = BYTES_BY_TYPE[type];
+        if (counter == null) {
+            // Racing threads get the same counter from the registry
+            counter = Metrics.counter("outbound.bytes." + type);
+            BYTES_BY_TYPE[type] = counter;
+        }
+        return counter;
+    }
+
+    /**
+     * Moves the buffers of as many queued messages as fit into
+     * <code>batch</code> starting at <code>offset</code>, without waiting.
+     * Returns the number of buffers moved.
+     */
+    public synchronized int poll(ByteBuffer[] batch, int offset) {
+        int n = 0;
+        while (!messages.isEmpty()) {
+            Message message = messages.peek();
+            int needed = message.body == null ? 1 : 2;
+            if (offset + n + needed > batch.length) {
+                break;
+            }
+            messages.poll();
+            batch[offset + n++] = message.header;
+            if (message.body != null) {
+                batch[offset + n++] = message.body;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Waits until there is a message queued and then moves the buffers of as
+     * many queued messages as fit into <code>batch</code>. Returns the number
+     * of buffers moved, or -1 once the queue has been closed.
+     */
+    public synchronized int take(ByteBuffer[] batch) throws InterruptedException {
+        while (messages.isEmpty() && !closed) {
+            wait();
+        }
+        if (closed) {
+            return -1;
+        }
+        return poll(batch, 0);
+    }
+
+    /**
+     * Returns whether there are no queued messages.
+     */
+    public synchronized boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * Returns the number of state messages that were dropped because the
+     * queue was full.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Discards the queued messages and makes every later offer fail.
+     */
+    public synchronized void close() {
+        closed = true;
+        messages.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,289 @@
+package fedorabots.server;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Obstacle;
+import fedorabots.server.sim.entity.Robot;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Records everything that happens to a room that its seed does not decide, so
+ * that the game can be played again exactly.
+ *
+ * <p>A room with a seed (see {@link Room#SEED}) always ticks the same way
+ * given the same obstacles, robots and commands, so the log only holds those:
+ * the obstacles and robots added to the room, the robots that left it, and
+ * the commands applied to each robot, each with the number of the tick it
+ * happened before, and the tick the game ended at. Logs are written to the directory given by
+ * <code>-Dfedorabots.replayDir</code>, one file per game, and can be played
+ * back with <code>java fedorabots.server.ReplayLog &lt;file&gt;</code>, which
+ * prints how long the room took to tick. The server playing a log back must
+ * use the same world options (such as <code>fedorabots.gridWorld</code>) as
+ * the one that recorded it.</p>
+ */
+public class ReplayLog implements Closeable {
+
+    /** The directory logs are written to, or null to not write logs. */
+    public static final String DIRECTORY = System.getProperty("fedorabots.replayDir");
+
+    private static final int MAGIC = 0x46425231; // FBR1
+    private static final byte OBSTACLE = 0, JOIN = 1, START = 2, LEAVE = 3, COMMAND = 4, SHOOT = 5, END = 6;
+
+    private static final Logger LOGGER = Logger.getLogger(ReplayLog.class.getName());
+
+    private final DataOutputStream out;
+    private boolean failed;
+
+    /**
+     * Starts a log of a room with the given robot limit and seed.
+     */
+    public ReplayLog(OutputStream out, int robotLimit, long seed) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(robotLimit);
+        this.out.writeLong(seed);
+    }
+
+    /**
+     * Opens a log for a new room in {@link #DIRECTORY}, or returns null if
+     * logs are not being written or the log could not be created.
+     */
+    public static ReplayLog open(short roomId, int robotLimit, long seed) {
+        if (DIRECTORY == null) {
+            return null;
+        }
+        File file = new File(DIRECTORY, "room-" + roomId + "-" + System.currentTimeMillis() + ".replay");
+        try {
+            return new ReplayLog(new FileOutputStream(file), robotLimit, seed);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not create replay log " + file, e);
+            return null;
+        }
+    }
+
+    private interface Record {
+        void write() throws IOException;
+    }
+
+    private synchronized void write(Record record) {
+        if (failed) {
+            return;
+        }
+        try {
+            record.write();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write to replay log, so it will stop being written", e);
+            failed = true;
+        }
+    }
+
+    public void obstacle(Obstacle obstacle) {
+        write(() -> {
+            out.writeByte(OBSTACLE);
+            out.writeUTF(obstacle.getClass().getName());
+            out.writeByte(obstacle.getId());
+            out.writeDouble(obstacle.getX());
+            out.writeDouble(obstacle.getY());
+        });
+    }
+
+    public void join(long tick, Robot robot) {
+        write(() -> {
+            out.writeByte(JOIN);
+            out.writeLong(tick);
+            out.writeShort(robot.getId());
+            out.writeInt(robot.getColor() == null ? -1 : robot.getColor().getRGB() & 0xffffff);
+            out.writeDouble(robot.getX());
+            out.writeDouble(robot.getY());
+            out.writeDouble(robot.getRotation());
+        });
+    }
+
+    /**
+     * Records that the game started, and the timestep the room was using.
+     */
+    public void start(double fixedStep, int maxSubSteps) {
+        write(() -> {
+            out.writeByte(START);
+            out.writeDouble(fixedStep);
+            out.writeInt(maxSubSteps);
+        });
+    }
+
+    public void leave(long tick, short robotId) {
+        write(() -> {
+            out.writeByte(LEAVE);
+            out.writeLong(tick);
+            out.writeShort(robotId);
+        });
+    }
+
+    public void command(long tick, short robotId, double ax, double ay, double rotation) {
+        write(() -> {
+            out.writeByte(COMMAND);
+            out.writeLong(tick);
+            out.writeShort(robotId);
+            out.writeDouble(ax);
+            out.writeDouble(ay);
+            out.writeDouble(rotation);
+        });
+    }
+
+    public void shoot(long tick, short robotId) {
+        write(() -> {
+            out.writeByte(SHOOT);
+            out.writeLong(tick);
+            out.writeShort(robotId);
+        });
+    }
+
+    /**
+     * Records the tick the game ended at, so that playing the log back ticks
+     * the room until then and not only until the last command.
+     */
+    public void end(long tick) {
+        write(() -> {
+            out.writeByte(END);
+            out.writeLong(tick);
+        });
+    }
+
+    /**
+     * Writes out what was recorded so far, so that little is lost if the
+     * server stops. The room calls this after every tick.
+     */
+    public void flush() {
+        write(out::flush);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not close replay log", e);
+        }
+        failed = true;
+    }
+
+    /**
+     * Plays a log back in a new room, ticking it as fast as possible, and
+     * returns the room once it reaches the tick the game ended at (or the
+     * end of the log, for a log that was not closed).
+     */
+    public static Room replay(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a replay log");
+        }
+        int robotLimit = in.readInt();
+        long seed = in.readLong();
+        Room room = new Room(robotLimit, World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT),
+                             (short) 0, seed, false);
+        new Manager().addRoom(room);
+
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return room;
+            }
+            switch (type) {
+                case OBSTACLE: {
+                    String className = in.readUTF();
+                    byte id = in.readByte();
+                    double x = in.readDouble(), y = in.readDouble();
+                    try {
+                        room.addObstacle(Class.forName(className).asSubclass(Obstacle.class)
+                                         .getConstructor(byte.class, double.class, double.class)
+                                         .newInstance(id, x, y));
+                    } catch (ReflectiveOperationException e) {
+                        throw new IOException("Could not create obstacle " + className, e);
+                    }
+                    break;
+                }
+                case JOIN: {
+                    in.readLong();
+                    short id = in.readShort();
+                    int rgb = in.readInt();
+                    Robot robot = new Robot(id, rgb == -1 ? null : new Color(rgb),
+                                            in.readDouble(), in.readDouble(), in.readDouble(),
+                                            Constants.Robot.RADIUS, Constants.Robot.MASS);
+                    try {
+                        room.addRobot(robot);
+                    } catch (Room.GameAlreadyStartedException e) {
+                        throw new IOException("Replay log has a robot joining a started game", e);
+                    }
+                    break;
+                }
+                case START:
+                    room.setFixedTimestep(in.readDouble(), in.readInt());
+                    break;
+                case LEAVE: {
+                    tickUntil(room, in.readLong());
+                    room.removeRobotById(in.readShort());
+                    break;
+                }
+                case COMMAND: {
+                    tickUntil(room, in.readLong());
+                    CommandMailbox mailbox = room.getMailbox(in.readShort());
+                    double ax = in.readDouble(), ay = in.readDouble(), rotation = in.readDouble();
+                    if (mailbox != null) {
+                        mailbox.post(ax, ay, rotation);
+                    }
+                    break;
+                }
+                case SHOOT: {
+                    tickUntil(room, in.readLong());
+                    CommandMailbox mailbox = room.getMailbox(in.readShort());
+                    if (mailbox != null) {
+                        mailbox.shoot();
+                    }
+                    break;
+                }
+                case END:
+                    tickUntil(room, in.readLong());
+                    return room;
+                default:
+                    throw new IOException("Unknown replay record " + type);
+            }
+        }
+    }
+
+    private static void tickUntil(Room room, long tick) {
+        while (room.getTicks() < tick && room.hasStarted()) {
+            room.tick(null);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java fedorabots.server.ReplayLog <file>");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        Room room;
+        try (InputStream in = new FileInputStream(args[0])) {
+            room = replay(in);
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.println("Replayed " + room.getTicks() + " ticks in " + millis + " ms (" +
+                           millis / Math.max(1, room.getTicks()) + " ms per tick)");
+    }
+}
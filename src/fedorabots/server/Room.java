@@ -5,12 +5,16 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import fedorabots.common.Constants;
-import fedorabots.common.Profiler;
 import javafx.geometry.Point2D;
+import fedorabots.server.metrics.Histogram;
+import fedorabots.server.metrics.Metrics;
 import fedorabots.server.sim.Sim;
 import fedorabots.server.sim.entity.Bullet;
 import fedorabots.server.sim.entity.Obstacle;
@@ -26,11 +30,36 @@ public class Room {
     private Sim sim;
     private short id;
     private Map<Short, Robot> robots;
-    private Collection<Obstacle> obstacles;
-    private boolean gameStarted = false;
+    // Written to by network threads, so kept apart from the robots
+    private Map<Short, CommandMailbox> mailboxes = new ConcurrentHashMap<Short, CommandMailbox>();
+    private Map<Connection, Short> robotConnections = new ConcurrentHashMap<Connection, Short>();
+    private Set<Connection> spectators = ConcurrentHashMap.newKeySet();
+    private volatile boolean gameStarted = false;
     private Manager manager;
+    private DeltaEncoder deltaEncoder = new DeltaEncoder();
+    private InterestManager interestManager = new InterestManager();
+    private double broadcastInterval = DEFAULT_BROADCAST_INTERVAL;
+    private double sinceBroadcast;
+    private final Random random;
+    // The number of ticks since the game started
+    private long ticks;
+    private ReplayLog replayLog;
+    // Null until the room's metrics are registered
+    private Histogram tickTime;
 
     private static short globalId;
+    /** The length of a simulation step in milliseconds, or 0 to step by the wall clock. */
+    private static final double DEFAULT_FIXED_STEP = Double.parseDouble(System.getProperty("fedorabots.fixedStep", "0"));
+    private static final int DEFAULT_MAX_SUB_STEPS = Integer.getInteger("fedorabots.maxSubSteps", 4);
+    /** The minimum time between state messages in milliseconds, or 0 to send one every tick. */
+    private static final double DEFAULT_BROADCAST_INTERVAL = Double.parseDouble(System.getProperty("fedorabots.broadcastInterval", "0"));
+    /**
+     * The seed of the rooms' random numbers (each room adds its id to it), or
+     * null to seed them unpredictably. Rooms with a seed also tick
+     * deterministically (see {@link fedorabots.server.sim.Sim#setDeterministic(boolean)})
+     * and write a {@link fedorabots.server.ReplayLog} if logs are enabled.
+     */
+    public static final Long SEED = Long.getLong("fedorabots.seed");
     private static final Logger LOGGER = Logger.getLogger(Room.class.getName());
 
     /**
@@ -51,12 +80,30 @@ public class Room {
      * passed.
      */
     public Room(int robotLimit, World w, short roomId) {
+        this(robotLimit, w, roomId, SEED == null ? null : SEED + roomId, true);
+    }
+
+    /**
+     * Creates a room whose random numbers come from the given seed, or from
+     * an unpredictable one if it is null. Rooms with a seed write a replay
+     * log if <code>log</code> is true.
+     */
+    Room(int robotLimit, World w, short roomId, Long seed, boolean log) {
         nRobots = robotLimit;
         world = w;
         sim = new Sim(world);
+        sim.setFixedTimestep(DEFAULT_FIXED_STEP, DEFAULT_MAX_SUB_STEPS);
         id = roomId;
         robots = new HashMap<Short, Robot>();
-        obstacles = world.getObstacles();
+        if (seed == null) {
+            random = new Random();
+        } else {
+            random = new Random(seed);
+            sim.setDeterministic(true);
+            if (log) {
+                replayLog = ReplayLog.open(roomId, robotLimit, seed);
+            }
+        }
     }
 
     /**
@@ -73,6 +120,39 @@ public class Room {
         manager = m;
     }
 
+    /**
+     * Makes the room's sim advance in fixed steps of <code>stepMillis</code>,
+     * running at most <code>maxSubSteps</code> steps per tick. A step length
+     * of 0 makes the sim step by the time since the last tick.
+     */
+    public void setFixedTimestep(double stepMillis, int maxSubSteps) {
+        sim.setFixedTimestep(stepMillis, maxSubSteps);
+    }
+
+    /**
+     * Sets the minimum time in milliseconds between two state messages, so
+     * that state can be sent less often than the sim is ticked. Health and
+     * obstacle updates are still sent on every tick.
+     */
+    public void setBroadcastInterval(double millis) {
+        broadcastInterval = millis;
+    }
+
+    /**
+     * Returns the encoder that keeps the snapshots of the room's state that
+     * delta state messages are taken against.
+     */
+    public DeltaEncoder getDeltaEncoder() {
+        return deltaEncoder;
+    }
+
+    /**
+     * Returns what each robot in the room could see at the last broadcast.
+     */
+    public InterestManager getInterestManager() {
+        return interestManager;
+    }
+
     /**
      * Returns the id of the room, which in most cases (if there are less than
      * about 65,000 rooms present) will be unique.
@@ -99,13 +179,20 @@ public class Room {
             throw new GameAlreadyStartedException("Room with id " + id + " is already full");
         }
         robots.put(robot.getId(), robot);
+        mailboxes.put(robot.getId(), new CommandMailbox());
         synchronized (world) {
+            if (replayLog != null) {
+                replayLog.join(ticks, robot);
+            }
             world.add(robot);
         }
 
         LOGGER.info("Room with id " + id + " has " + robots.size() + "/" + nRobots + " robots");
 
         if (robots.size() >= nRobots) {
+            if (replayLog != null) {
+                replayLog.start(sim.getFixedStep(), sim.getMaxSubSteps());
+            }
             gameStarted = true;
             LOGGER.info("Starting game in room with id " + id + "!");
         }
@@ -116,15 +203,75 @@ public class Room {
      * Removes a robot from the room, returning {@code true} if the robot was removed.
      */
     public boolean removeRobotById(short robotId) {
-        Robot ent = robots.remove(robotId);
+        Robot ent;
+        // Robots leave from network threads, so wait for the room to finish ticking
+        synchronized (world) {
+            ent = robots.remove(robotId);
+            mailboxes.remove(robotId);
+            if (ent != null) {
+                if (replayLog != null) {
+                    replayLog.leave(ticks, robotId);
+                }
+                world.remove(ent);
+                closeReplayLogIfEnded();
+            }
+        }
         if (ent != null) {
-            world.remove(ent);
             LOGGER.info("Room with id " + id + " has " + robots.size() + "/" + nRobots + " robots");
             return true;
         }
         return false;
     }
 
+    /**
+     * Returns the connections of the robots in the room, mapped to the ids of
+     * their robots. Broadcasts iterate over these while network threads add
+     * to them, so they are concurrent collections.
+     */
+    public Map<Connection, Short> getRobotConnections() {
+        return robotConnections;
+    }
+
+    /**
+     * Returns the connections of the displays spectating the room.
+     */
+    public Set<Connection> getSpectators() {
+        return spectators;
+    }
+
+    /**
+     * Returns the mailbox that commands for the robot with the given id are
+     * posted to, or null if the robot is not in the room.
+     */
+    public CommandMailbox getMailbox(short robotId) {
+        return mailboxes.get(robotId);
+    }
+
+    /**
+     * Applies the commands posted for each robot since the last tick.
+     */
+    private void applyCommands() {
+        for (Robot robot : robots.values()) {
+            CommandMailbox mailbox = mailboxes.get(robot.getId());
+            if (mailbox != null && mailbox.apply(robot, replayLog, ticks)) {
+                shoot(robot);
+            }
+        }
+    }
+
+    /**
+     * Fires a bullet from the robot's blaster.
+     */
+    private void shoot(Robot robot) {
+        double rotation = -robot.getRotation() + Math.PI / 2;
+        double vx = Constants.Bullet.VELOCITY/1e3 * Math.cos(rotation);
+        double vy = - (Constants.Bullet.VELOCITY/1e3 * Math.sin(rotation));
+        double dist = (Constants.Robot.RADIUS + Constants.Bullet.RADIUS) * 1.3;
+        double x = robot.getX() + dist * Math.cos(rotation);
+        double y = robot.getY() - dist * Math.sin(rotation);
+        addBullet(world.getBulletPool().acquire(x, y, Constants.Bullet.RADIUS, Constants.Bullet.MASS, vx, vy));
+    }
+
     /**
      * Adds a bullet to the room's world
      */
@@ -146,9 +293,11 @@ public class Room {
             o.setPositionUnsafe(location.getX(), location.getY());
         }
         synchronized (world) {
+            if (replayLog != null) {
+                replayLog.obstacle(o);
+            }
             world.add(o);
         }
-        obstacles.add(o);
     }
 
     /**
@@ -189,7 +338,7 @@ public class Room {
     /**
      * Tells the room's manager to send a state update message over the given server.
      */
-    public void broadcastState(TcpServer server, Collection<Robot> robots) {
+    public void broadcastState(Server server, Collection<Robot> robots) {
         manager.broadcastRoomState(server, this, robots, world);
     }
 
@@ -199,39 +348,103 @@ public class Room {
      *
      * @param server    The server to send state update messages through
      */
-    public long tick(TcpServer server) {
+    public long tick(Server server) {
         if (gameStarted) {
+            long start = System.nanoTime();
             synchronized (world) {
-                return sim.tick(tick -> {
-                    Profiler.time("Broadcast state");
+                applyCommands();
+                long took = sim.tick(tick -> {
                     Collection<Robot> rvs = robots.values();
-                    broadcastState(server, rvs);
-                    Profiler.timeEnd("Broadcast state");
+                    sinceBroadcast += tick;
+                    if (sinceBroadcast >= broadcastInterval) {
+                        sinceBroadcast = 0;
+                        broadcastState(server, rvs);
+                    }
                     List<Robot> robotsChangedHealth = world.healthChangedRobots(rvs);
                     if (robotsChangedHealth.size() > 0) {
                         manager.broadcastBuf(server, this, world.healthStates(robotsChangedHealth));
                         for (Robot robot : robotsChangedHealth) {
                             if (robot.getHealth() == 0) {
                                 robots.remove(robot.getId());
+                                mailboxes.remove(robot.getId());
                             }
                         }
                     }
-                    List<Obstacle> obstaclesChangedRotation = world.rotationChangedObstacles(obstacles);
+                    List<Obstacle> obstaclesChangedRotation = world.rotationChangedObstacles(world.getObstacles());
                     if (obstaclesChangedRotation.size() > 0) {
                         manager.broadcastBuf(server, this, world.obstacleStates(obstaclesChangedRotation));
                     }
                 });
+                ticks++;
+                if (replayLog != null) {
+                    replayLog.flush();
+                    closeReplayLogIfEnded();
+                }
+                if (tickTime != null) {
+                    tickTime.record(System.nanoTime() - start);
+                }
+                return took;
             }
         } else {
             return 0;
         }
     }
 
+    /**
+     * Registers the room's metrics with {@link fedorabots.server.metrics.Metrics}
+     * as <code>room.&lt;id&gt;.*</code>, taking over those of a room that had
+     * the same id before: the time each tick took, including waiting for the
+     * room's lock, in nanoseconds, and how many robots, bullets, obstacles and
+     * connections the room has.
+     */
+    void registerMetrics() {
+        String prefix = metricsPrefix();
+        tickTime = Metrics.histogram(prefix + "tickTime");
+        Metrics.gauge(prefix + "robots", () -> robots.size());
+        Metrics.gauge(prefix + "bullets", () -> world.getBullets().size());
+        Metrics.gauge(prefix + "obstacles", () -> world.getObstacles().size());
+        Metrics.gauge(prefix + "connections", () -> robotConnections.size() + spectators.size());
+    }
+
+    void unregisterMetrics() {
+        tickTime = null;
+        Metrics.remove(metricsPrefix());
+    }
+
+    private String metricsPrefix() {
+        return "room." + id + ".";
+    }
+
+    private void closeReplayLogIfEnded() {
+        if (replayLog != null && hasEnded()) {
+            replayLog.end(ticks);
+            replayLog.close();
+            replayLog = null;
+        }
+    }
+
+    /**
+     * Returns the number of ticks since the game started.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Returns the room's source of random numbers, which is seeded if
+     * {@link #SEED} is set. It must only be used while holding the room's
+     * lock or from the thread ticking the room.
+     */
+    public Random getRandom() {
+        return random;
+    }
+
     /**
      * Returns a representation of the initial state of the world
      */
     public ByteBuffer initialState() {
         Collection<Robot> rvs = robots.values();
+        Collection<Obstacle> obstacles = world.getObstacles();
         ByteBuffer buf = ByteBuffer.allocate(World.initialStateLength(rvs, obstacles) + 3);
         buf.put((byte) 0);
         buf.put((byte) rvs.size());
@@ -245,13 +458,15 @@ public class Room {
      * no robots in it).
      */
     public Room resetCopy() {
-        World w = World.generateScrollingWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT); //world.emptyClone();
+        World w = world.emptyClone();
         Room r = new Room(getRobotLimit(), w, getId());
         r.setManager(manager);
+        r.sim.setFixedTimestep(sim.getFixedStep(), sim.getMaxSubSteps());
+        r.setBroadcastInterval(broadcastInterval);
 
         List<Obstacle> obstacles = world.getObstacles().stream().collect(Collectors.toList());
         while (!obstacles.isEmpty()) {
-            Obstacle obs = obstacles.remove((int) (Math.random() * obstacles.size())).clone();
+            Obstacle obs = obstacles.remove(r.random.nextInt(obstacles.size())).clone();
             obs.setPositionUnsafe(-1, -1);
             r.addObstacle(obs);
         }
@@ -0,0 +1,119 @@
+package fedorabots.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fedorabots.server.sim.Sim;
+
+/**
+ * Ticks rooms on a work-stealing pool, one task per room tick.
+ *
+ * Each room keeps its own deadline for its next tick, so a room that takes a
+ * long time to tick only delays itself while the other rooms keep ticking on
+ * the remaining workers.
+ */
+public class RoomScheduler {
+
+    private final ForkJoinPool pool;
+    private final Map<Room, RoomTask> tasks = new ConcurrentHashMap<Room, RoomTask>();
+    private final Object wakeup = new Object();
+    // Set when a room finishes ticking, so that the wakeup is not lost if the
+    // tick loop was not waiting yet. Guarded by wakeup.
+    private boolean woken;
+
+    private static final Logger LOGGER = Logger.getLogger(RoomScheduler.class.getName());
+
+    public RoomScheduler(int parallelism) {
+        pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    public RoomScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    private class RoomTask implements Runnable {
+        private final Room room;
+        private final Server server;
+        private volatile boolean running;
+        private volatile long dueAt;
+
+        private RoomTask(Room room, Server server, long now) {
+            this.room = room;
+            this.server = server;
+            this.dueAt = now;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                room.tick(server);
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error while ticking room with id " + room.getId(), e);
+            }
+            long took = System.nanoTime() - start;
+            if (took > Sim.MIN_TICK_LENGTH) {
+                LOGGER.fine("Room with id " + room.getId() + " missed its tick deadline by " +
+                            (took - Sim.MIN_TICK_LENGTH) / 1e6 + " ms");
+            }
+            dueAt = start + Sim.MIN_TICK_LENGTH;
+            running = false;
+            synchronized (wakeup) {
+                woken = true;
+                wakeup.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Submits a tick of the room to the pool if the room is due and its
+     * previous tick has finished. Returns the time (in nanoseconds, as given by
+     * {@link System#nanoTime()}) at which the room should be looked at again.
+     */
+    public long schedule(Room room, Server server, long now) {
+        RoomTask task = tasks.computeIfAbsent(room, r -> new RoomTask(r, server, now));
+        if (task.running) {
+            return now + Sim.MIN_TICK_LENGTH;
+        }
+        if (now - task.dueAt >= 0) {
+            task.running = true;
+            pool.execute(task);
+            return now + Sim.MIN_TICK_LENGTH;
+        }
+        return task.dueAt;
+    }
+
+    /**
+     * Returns whether a tick of the room is currently queued or running.
+     */
+    public boolean isTicking(Room room) {
+        RoomTask task = tasks.get(room);
+        return task != null && task.running;
+    }
+
+    /**
+     * Stops tracking a room that is no longer ticked. The room must not be
+     * ticking.
+     */
+    public void forget(Room room) {
+        tasks.remove(room);
+    }
+
+    /**
+     * Waits until the given time or until a room finishes ticking, whichever
+     * comes first. Returns right away if a room finished ticking since the
+     * last call.
+     */
+    public void awaitUntil(long time) throws InterruptedException {
+        synchronized (wakeup) {
+            long millis = (time - System.nanoTime() + (long) 1e6 - 1) / (long) 1e6;
+            if (!woken && millis > 0) {
+                wakeup.wait(millis);
+            }
+            woken = false;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package fedorabots.server;
+
+import java.io.IOException;
+
+/**
+ * A server accepts connections from clients and passes the messages they send
+ * to the {@link fedorabots.server.Manager}. Running it serves clients until
+ * the server is closed.
+ */
+public interface Server extends Runnable {
+
+    /**
+     * Stops accepting connections and closes the server.
+     */
+    void close() throws IOException;
+
+    /**
+     * Creates the server selected by the <code>fedorabots.nio</code> system
+     * property: a {@link fedorabots.server.NioServer} if it is true and a
+     * {@link fedorabots.server.TcpServer} otherwise.
+     */
+    static Server create(Manager manager) throws IOException {
+        if (Boolean.getBoolean("fedorabots.nio")) {
+            return new NioServer(manager);
+        }
+        return new TcpServer(manager);
+    }
+}
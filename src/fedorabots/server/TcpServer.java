@@ -1,5 +1,9 @@
 package fedorabots.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,11 +18,13 @@ import fedorabots.server.Manager.ParseException;
 
 /**
  * The Tcp Server is only responsible for handling incoming connections and
- * passing the raw buffer to the {@link fedorabots.server.Manager}.
+ * passing the raw buffer to the {@link fedorabots.server.Manager}. It uses one
+ * thread per connection; see {@link fedorabots.server.NioServer} for a server
+ * that handles many connections on a few threads.
  *
  * <p>Credits to https://gist.github.com/Botffy/3860641</p>
  */
-public class TcpServer implements Runnable {
+public class TcpServer implements Server {
 	public static final int PORT = 8090;
 	private static short next_id = 0;
 	private ServerSocket ss;
@@ -46,28 +52,22 @@ public class TcpServer implements Runnable {
 		}
 	}
 
-	/**
-	 * Sends a message (<code>buf</code>) to a client known by the given
-	 * <code>key</code>.
-	 */
-	public static boolean sendToHandle(Handler handler, ByteBuffer buf, Manager manager) {
-		if(!handler.getSock().isClosed() && handler.getSock().isConnected()){
-			try {
-				handler.getOut().write(buf.array(), 0, buf.limit());
-				return true;
-			} catch (IOException e) {
-				LOGGER.log(Level.WARNING, "Could not write to socket from " + handler, e);
-			}
-		}
-		return false;
+	@Override
+	public void close() throws IOException {
+		ss.close();
 	}
 
-	class Handler extends Thread {
+	class Handler extends Thread implements Connection {
 
 		private Socket sock;
 		private InputStream in;
 		private OutputStream out;
 		private short hid;
+		private final OutboundQueue outbound = new OutboundQueue();
+		private final Thread writer = new Thread(this::writeQueued);
+		// Reused for every message read, since the manager is done with each
+		// message before the next one is read
+		private final ByteBuffer message = ByteBuffer.allocate(Manager.MAX_MESSAGE_LENGTH);
 
 		private Handler(Socket sock) throws IOException{
 			this.sock = sock;
@@ -76,37 +76,48 @@ public class TcpServer implements Runnable {
 			in = sock.getInputStream();
 			hid = next_id;
 			next_id++;
+			writer.setName("writer-" + hid);
+			writer.setDaemon(true);
 			LOGGER.finer("creating handler");
 		}
 
 		public void run(){
 			LOGGER.finer("starting handler");
+			writer.start();
+			DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+			byte[] bytes = message.array();
 			try {
 				while(!sock.isClosed() && sock.isConnected()){
-					byte type = (byte) in.read();
+					int type = din.read();
 					if(type == -1){
 						break;
 					}
 					try {
-						int numToRead = Manager.messageLength(type & 0xFF);
-						ByteBuffer bb = ByteBuffer.allocate(numToRead + 1);
-						bb.put(type);
-						for (int i = 0; i < numToRead; i++) {
-							bb.put((byte) in.read());
-						}
-						bb.rewind();
+						int numToRead = Manager.messageLength(type);
+						bytes[0] = (byte) type;
+						din.readFully(bytes, 1, numToRead);
+						int length = Manager.messageLength(type, message, 1);
+						din.readFully(bytes, 1 + numToRead, length - numToRead);
+						message.limit(length + 1);
+						message.position(0);
 
-						LOGGER.finest("Created buffer " + Util.toString(bb));
-						manager.handleSent(bb, TcpServer.this, this);
+						if(LOGGER.isLoggable(Level.FINEST)) {
+							LOGGER.finest("Created buffer " + Util.toString(message));
+						}
+						manager.handleSent(message, TcpServer.this, this);
 					} catch (ParseException e) {
 						LOGGER.log(Level.WARNING, "bad message type", e);
 					}
+					message.clear();
 				}
+			} catch(EOFException e){
+				LOGGER.fine("Client with handler " + this + " closed its connection in the middle of a message");
 			} catch(Exception e){
 				LOGGER.log(Level.SEVERE, "Error while running handler", e);
 				manager.handleClosed(this);
 			}
 			LOGGER.info("Client with handler " + this + " left the game.");
+			outbound.close();
 			if(!sock.isClosed()){
 				try {
 					sock.close();
@@ -117,6 +128,79 @@ public class TcpServer implements Runnable {
 			manager.handleClosed(this);
 		}
 
+		/**
+		 * Writes queued messages to the socket until the handler is closed,
+		 * coalescing everything that queued up since the last write into one.
+		 */
+		private void writeQueued() {
+			ByteBuffer[] batch = new ByteBuffer[16];
+			byte[] scratch = new byte[8192];
+			BufferedOutputStream bout = new BufferedOutputStream(out, scratch.length);
+			try {
+				int n;
+				while((n = outbound.take(batch)) != -1) {
+					for(int i = 0; i < n; i++) {
+						ByteBuffer buf = batch[i];
+						if(buf.hasArray()) {
+							bout.write(buf.array(), buf.arrayOffset(), buf.limit());
+						} else {
+							// Shared bodies are read only (and often direct), so copy them out
+							while(buf.hasRemaining()) {
+								int len = Math.min(scratch.length, buf.remaining());
+								buf.get(scratch, 0, len);
+								bout.write(scratch, 0, len);
+							}
+						}
+						batch[i] = null;
+					}
+					bout.flush();
+				}
+			} catch(IOException e) {
+				LOGGER.log(Level.WARNING, "Could not write to socket from " + this, e);
+				close();
+			} catch(InterruptedException e) {
+				LOGGER.warning("Writer of " + this + " was interrupted");
+			}
+		}
+
+		/**
+		 * Queues the message to be written by the handler's writer thread, so
+		 * this never blocks on the network.
+		 */
+		@Override
+		public boolean send(ByteBuffer buf) {
+			return isOpen() && queued(outbound.offer(buf));
+		}
+
+		@Override
+		public boolean send(ByteBuffer header, ByteBuffer body) {
+			return isOpen() && queued(outbound.offer(header, body));
+		}
+
+		private boolean queued(boolean offered) {
+			if(!offered) {
+				LOGGER.warning("Closing " + this + " since it fell too far behind");
+				close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !sock.isClosed() && sock.isConnected();
+		}
+
+		@Override
+		public void close() {
+			outbound.close();
+			try {
+				sock.close();
+			} catch(IOException e) {
+				LOGGER.warning("Could not close socket");
+			}
+		}
+
 		/**
 		 * @return the sock
 		 */
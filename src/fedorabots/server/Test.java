@@ -30,7 +30,7 @@ public class Test {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        World w = World.generateScrollingWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
+        World w = World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT);
         Room room = new Room(1, w);
         room.addObstacle(new Turret((byte) 0, -1, -1));
         room.addObstacle(new Vaporizer((byte) 1, -1, -1));
@@ -46,7 +46,7 @@ public class Test {
         // w.add(phys2);
         Manager manager = new Manager();
         manager.addRoom(room);
-        TcpServer server = new TcpServer(manager);
+        Server server = Server.create(manager);
         Thread t = new Thread(server);
         t.setDaemon(true);
         t.start();
@@ -0,0 +1,621 @@
+package fedorabots.server.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fedorabots.common.Constants;
+import fedorabots.server.DeltaEncoder;
+import fedorabots.server.Manager;
+import fedorabots.server.Room;
+import fedorabots.server.Server;
+import fedorabots.server.TcpServer;
+import fedorabots.server.metrics.Histogram;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Drives a server with many simulated robots over TCP without any display,
+ * to find out how many robots a server can take.
+ *
+ * <p>Every robot is a raw protocol connection that joins a room with message
+ * 128. Once its game starts it sends robot updates (129) with a random
+ * acceleration and rotation and shoot requests (130) in command batches
+ * (132) at the rates it was given, and acknowledges every delta state (131)
+ * like a real client. Connections are handled with non-blocking channels on a
+ * few event loop threads, so thousands of robots can run in one process.</p>
+ *
+ * <p>Every {@link #REPORT_INTERVAL} seconds it prints how many robots are
+ * playing, how many state messages, bytes and commands went by per second,
+ * and two latencies in milliseconds: the gap between two state messages on
+ * the same connection, which stays close to the room's broadcast interval
+ * unless the server falls behind, and how much later each robot got a delta
+ * state than the first robot of its room that got the same snapshot, which
+ * is how long the server took to send the state to everyone.</p>
+ *
+ * <p>It is configured with system properties: <code>server.host</code> (the
+ * local host by default), <code>fedorabots.load.robots</code> (100),
+ * <code>fedorabots.load.robotsPerRoom</code> (10, which must be the robot
+ * limit of the rooms), <code>fedorabots.load.firstRoom</code> (the id of the
+ * first room joined, 0), <code>fedorabots.load.updateRate</code> and
+ * <code>fedorabots.load.shootRate</code> (robot updates and shoot requests
+ * per robot per second, 10 and 1), <code>fedorabots.load.connectRate</code>
+ * (new connections per second, 500), <code>fedorabots.load.threads</code>
+ * (event loops, half the number of processors),
+ * <code>fedorabots.load.duration</code> (seconds, or 0 to run until stopped,
+ * 60) and <code>fedorabots.load.reportInterval</code> (seconds, 5). With
+ * <code>fedorabots.load.embedded=true</code> it starts a server in the same
+ * process with the rooms the robots need, so that a server can be measured
+ * over loopback in one command.</p>
+ */
+public class LoadGenerator {
+
+    public static final String HOST = System.getProperty("server.host", "localhost");
+    public static final int ROBOTS = Integer.getInteger("fedorabots.load.robots", 100);
+    public static final int ROBOTS_PER_ROOM = Integer.getInteger("fedorabots.load.robotsPerRoom", 10);
+    public static final int FIRST_ROOM = Integer.getInteger("fedorabots.load.firstRoom", 0);
+    public static final double UPDATE_RATE = Double.parseDouble(System.getProperty("fedorabots.load.updateRate", "10"));
+    public static final double SHOOT_RATE = Double.parseDouble(System.getProperty("fedorabots.load.shootRate", "1"));
+    public static final int CONNECT_RATE = Integer.getInteger("fedorabots.load.connectRate", 500);
+    public static final int THREADS = Integer.getInteger("fedorabots.load.threads",
+                                                         Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    public static final long DURATION = Long.getLong("fedorabots.load.duration", 60);
+    public static final long REPORT_INTERVAL = Long.getLong("fedorabots.load.reportInterval", 5);
+    public static final boolean EMBEDDED = Boolean.getBoolean("fedorabots.load.embedded");
+
+    // Snapshots of a room are forgotten after this long, since ids wrap around
+    private static final long SNAPSHOT_LIFETIME = 1000000000L;
+    // The longest an event loop waits before it checks for commands to send
+    private static final long MAX_WAIT_MILLIS = 100;
+
+    private final InetSocketAddress address;
+    private final int firstRoom;
+    private final EventLoop[] loops;
+    private final RoomClock[] rooms;
+
+    private final Histogram stateGap = new Histogram("load.stateGap");
+    private final Histogram fanOut = new Histogram("load.fanOut");
+    private final Histogram totalStateGap = new Histogram("load.totalStateGap");
+    private final Histogram totalFanOut = new Histogram("load.totalFanOut");
+    private final LongAdder states = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder commands = new LongAdder();
+    private long totalStates, totalBytes, totalCommands;
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger playing = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * Creates a generator whose robots join the rooms starting at
+     * <code>firstRoom</code> on the server at the given address.
+     */
+    public LoadGenerator(InetSocketAddress address, int firstRoom) throws IOException {
+        this.address = address;
+        this.firstRoom = firstRoom;
+        loops = new EventLoop[THREADS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        rooms = new RoomClock[(ROBOTS + ROBOTS_PER_ROOM - 1) / ROBOTS_PER_ROOM];
+        for (int i = 0; i < rooms.length; i++) {
+            rooms[i] = new RoomClock();
+        }
+    }
+
+    /**
+     * Keeps the time at which the first robot of a room got each of the
+     * room's recent snapshots.
+     */
+    private static class RoomClock {
+        private final int[] ids = new int[64];
+        private final long[] arrivals = new long[64];
+
+        private RoomClock() {
+            Arrays.fill(ids, -1);
+        }
+
+        private synchronized long firstArrival(int snapshotId, long now) {
+            int i = snapshotId % ids.length;
+            if (ids[i] != snapshotId || now - arrivals[i] > SNAPSHOT_LIFETIME) {
+                ids[i] = snapshotId;
+                arrivals[i] = now;
+            }
+            return arrivals[i];
+        }
+    }
+
+    /**
+     * Returns the length of the message from the server that starts at the
+     * buffer's position, including its type, or -1 if not enough of it has
+     * been read to tell.
+     */
+    static int messageLength(ByteBuffer buf) throws IOException {
+        int p = buf.position();
+        int remaining = buf.remaining();
+        if (remaining < 1) {
+            return -1;
+        }
+        int type = buf.get(p) & 0xFF;
+        switch (type) {
+            case 0:
+                return remaining < 3 ? -1 : 3 + (buf.get(p + 1) & 0xFF) * 11 + (buf.get(p + 2) & 0xFF) * 5;
+            case 1:
+                return remaining < 4 ? -1 : 4 + (buf.get(p + 1) & 0xFF) * 8 + 8 + (buf.getShort(p + 2) & 0xFFFF) * 4;
+            case 2:
+                return remaining < 2 ? -1 : 2 + (buf.get(p + 1) & 0xFF) * 5;
+            case 3:
+                return remaining < 2 ? -1 : 2 + (buf.get(p + 1) & 0xFF) * 2;
+            case 5:
+                return remaining < DeltaEncoder.HEADER_LENGTH ? -1
+                        : DeltaEncoder.HEADER_LENGTH + buf.getInt(p + DeltaEncoder.HEADER_LENGTH - 4);
+            case 64:
+                return 3;
+            case 4:
+            case 65:
+            case 66:
+                return 1;
+            default:
+                throw new IOException("Unknown message type " + type + ".");
+        }
+    }
+
+    /**
+     * Connects the robots at {@link #CONNECT_RATE} and reports on them until
+     * {@link #DURATION} is over, then closes them and prints the totals.
+     */
+    public void run() throws InterruptedException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "load-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long start = System.nanoTime();
+        long nextReport = start + REPORT_INTERVAL * 1000000000L;
+        long end = DURATION > 0 ? start + DURATION * 1000000000L : Long.MAX_VALUE;
+        for (int i = 0; i < ROBOTS; i++) {
+            EventLoop loop = loops[i % loops.length];
+            int room = i / ROBOTS_PER_ROOM;
+            loop.execute(() -> loop.connect(room));
+            long due = start + (i + 1) * 1000000000L / CONNECT_RATE;
+            long now = System.nanoTime();
+            if (due > now) {
+                Thread.sleep((due - now) / 1000000, (int) ((due - now) % 1000000));
+            }
+            if (now - nextReport >= 0) {
+                report(REPORT_INTERVAL);
+                nextReport += REPORT_INTERVAL * 1000000000L;
+            }
+        }
+
+        while (true) {
+            long now = System.nanoTime();
+            long wake = Math.min(nextReport, end);
+            if (wake - now > 0) {
+                Thread.sleep((wake - now) / 1000000);
+                continue;
+            }
+            if (now - nextReport >= 0) {
+                report(REPORT_INTERVAL);
+                nextReport += REPORT_INTERVAL * 1000000000L;
+            }
+            if (now - end >= 0) {
+                break;
+            }
+        }
+
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        totalStateGap.rotate();
+        totalFanOut.rotate();
+        System.out.println("Total: " + totalStates + " states, " + totalBytes / 1024 + " KB, " + totalCommands +
+                           " commands, " + failed.get() + " connections failed | state gap " +
+                           millis(totalStateGap) + " | fan-out " + millis(totalFanOut));
+    }
+
+    private void report(long seconds) {
+        long s = states.sumThenReset(), b = bytes.sumThenReset(), c = commands.sumThenReset();
+        totalStates += s;
+        totalBytes += b;
+        totalCommands += c;
+        stateGap.rotate();
+        fanOut.rotate();
+        System.out.println(LocalTime.now().truncatedTo(ChronoUnit.SECONDS) + " robots " + connected.get() + "/" +
+                           ROBOTS + " playing " + playing.get() + " | states " + s / seconds + "/s " +
+                           b / seconds / 1024 + " KB/s | commands " + c / seconds + "/s | state gap " +
+                           millis(stateGap) + " | fan-out " + millis(fanOut));
+    }
+
+    private static String millis(Histogram h) {
+        return String.format("p50 %.1f p99 %.1f max %.1f ms", h.getP50() / 1e6, h.getP99() / 1e6, h.getMax() / 1e6);
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final List<RobotConnection> connections = new ArrayList<RobotConnection>();
+        private volatile boolean closed;
+
+        private EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on the loop's thread before it next selects.
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void shutdown() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        private void connect(int room) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                RobotConnection connection = new RobotConnection(channel, room);
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                connections.add(connection);
+                if (channel.connect(address)) {
+                    connection.connected();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not connect a robot to " + address, e);
+                failed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            long wait = MAX_WAIT_MILLIS;
+            while (!closed) {
+                try {
+                    selector.select(Math.max(1, wait));
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Error while selecting", e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    RobotConnection connection = (RobotConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable() && connection.channel.finishConnect()) {
+                            connection.connected();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Robot connection " + connection + " failed", e);
+                        connection.close(true);
+                    }
+                }
+
+                long now = System.nanoTime();
+                long nextDue = now + MAX_WAIT_MILLIS * 1000000;
+                Iterator<RobotConnection> connectionIter = connections.iterator();
+                while (connectionIter.hasNext()) {
+                    RobotConnection connection = connectionIter.next();
+                    if (connection.closed) {
+                        connectionIter.remove();
+                        continue;
+                    }
+                    try {
+                        long due = connection.sendCommands(now);
+                        if (due - nextDue < 0) {
+                            nextDue = due;
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Robot connection " + connection + " failed", e);
+                        connection.close(true);
+                    }
+                }
+                wait = (nextDue - now) / 1000000;
+            }
+
+            for (RobotConnection connection : connections) {
+                connection.close(false);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Could not close selector");
+            }
+        }
+    }
+
+    private class RobotConnection {
+        private final SocketChannel channel;
+        private final int room;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private final ByteBuffer out = ByteBuffer.allocate(1024);
+        private boolean isConnected;
+        private short robotId;
+        // Whether the game started and the robot is still alive
+        private boolean isPlaying;
+        private long lastState;
+        private long nextUpdate, nextShoot;
+        private boolean closed;
+
+        private RobotConnection(SocketChannel channel, int room) {
+            this.channel = channel;
+            this.room = room;
+        }
+
+        private void connected() throws IOException {
+            isConnected = true;
+            connected.incrementAndGet();
+            key.interestOps(SelectionKey.OP_READ);
+            Random random = ThreadLocalRandom.current();
+            out.put((byte) 128);
+            out.putShort((short) (firstRoom + room));
+            out.put((byte) random.nextInt(256));
+            out.put((byte) random.nextInt(256));
+            out.put((byte) random.nextInt(256));
+            flush();
+        }
+
+        /**
+         * Reads what is available from the channel and handles every complete
+         * message.
+         */
+        private void read() throws IOException {
+            int n = channel.read(in);
+            if (n == -1) {
+                LOGGER.info("Server closed robot connection " + this);
+                close(true);
+                return;
+            }
+            bytes.add(n);
+            in.flip();
+            int needed = 0;
+            while (true) {
+                int length = messageLength(in);
+                if (length == -1 || length > in.remaining()) {
+                    needed = length;
+                    break;
+                }
+                int start = in.position();
+                handle(in.get(start) & 0xFF, start);
+                if (closed) {
+                    return;
+                }
+                in.position(start + length);
+            }
+            in.compact();
+            if (needed > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, in.capacity() * 2));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        private void handle(int type, int start) throws IOException {
+            long now = System.nanoTime();
+            switch (type) {
+                case 0:
+                    // Ask for deltas from now on, like a real client
+                    ack(DeltaEncoder.NO_SNAPSHOT);
+                    break;
+                case 1:
+                    stateReceived(now);
+                    break;
+                case 5: {
+                    stateReceived(now);
+                    int snapshotId = in.getShort(start + 1) & 0xFFFF;
+                    long delay = now - rooms[room].firstArrival(snapshotId, now);
+                    fanOut.record(delay);
+                    totalFanOut.record(delay);
+                    ack(snapshotId);
+                    break;
+                }
+                case 2:
+                    // Stop sending commands once the robot is dead
+                    for (int i = start + 2; i < start + 2 + (in.get(start + 1) & 0xFF) * 5; i += 5) {
+                        if (in.getShort(i) == robotId && in.get(i + 2) == 0 && isPlaying) {
+                            isPlaying = false;
+                            playing.decrementAndGet();
+                        }
+                    }
+                    break;
+                case 64: {
+                    robotId = in.getShort(start + 1);
+                    isPlaying = true;
+                    playing.incrementAndGet();
+                    // Spread the robots' commands over their periods
+                    Random random = ThreadLocalRandom.current();
+                    nextUpdate = now + (long) (random.nextDouble() * period(UPDATE_RATE));
+                    nextShoot = now + (long) (random.nextDouble() * period(SHOOT_RATE));
+                    break;
+                }
+                case 65:
+                    throw new IOException("Room " + (firstRoom + room) + " does not exist.");
+                case 66:
+                    throw new IOException("Room " + (firstRoom + room) + " already started its game.");
+                default:
+                    break;
+            }
+        }
+
+        private void stateReceived(long now) {
+            states.increment();
+            if (lastState != 0) {
+                stateGap.record(now - lastState);
+                totalStateGap.record(now - lastState);
+            }
+            lastState = now;
+        }
+
+        private void ack(int snapshotId) throws IOException {
+            if (out.remaining() >= 3) {
+                out.put((byte) 131);
+                out.putShort((short) snapshotId);
+                flush();
+            }
+        }
+
+        /**
+         * Sends the commands that are due in one batch, and returns when the
+         * next command is due.
+         */
+        private long sendCommands(long now) throws IOException {
+            if (!isPlaying) {
+                return Long.MAX_VALUE;
+            }
+            boolean update = UPDATE_RATE > 0 && now - nextUpdate >= 0;
+            boolean shoot = SHOOT_RATE > 0 && now - nextShoot >= 0;
+            if ((update || shoot) && out.remaining() >= 3 + 13 + 3) {
+                out.put((byte) 132);
+                int lengthAt = out.position();
+                out.putShort((short) 0);
+                if (update) {
+                    Random random = ThreadLocalRandom.current();
+                    double max = Constants.Robot.MAX_ACCELERATION / Math.sqrt(2);
+                    out.put((byte) 129);
+                    out.putShort(robotId);
+                    out.putFloat((float) ((random.nextDouble() * 2 - 1) * max));
+                    out.putFloat((float) ((random.nextDouble() * 2 - 1) * max));
+                    out.putShort((short) Math.round(random.nextDouble() * (Short.MAX_VALUE - Short.MIN_VALUE)));
+                    nextUpdate = next(nextUpdate, UPDATE_RATE, now);
+                    commands.increment();
+                }
+                if (shoot) {
+                    out.put((byte) 130);
+                    out.putShort(robotId);
+                    nextShoot = next(nextShoot, SHOOT_RATE, now);
+                    commands.increment();
+                }
+                out.putShort(lengthAt, (short) (out.position() - lengthAt - 2));
+                flush();
+            }
+            long due = Long.MAX_VALUE;
+            if (UPDATE_RATE > 0) {
+                due = nextUpdate;
+            }
+            if (SHOOT_RATE > 0 && nextShoot - due < 0) {
+                due = nextShoot;
+            }
+            return due;
+        }
+
+        private long period(double rate) {
+            return rate > 0 ? (long) (1e9 / rate) : 0;
+        }
+
+        /**
+         * Returns when a command sent at the given rate is next due, skipping
+         * the ones that were missed instead of sending them in a burst.
+         */
+        private long next(long due, double rate, long now) {
+            due += period(rate);
+            return due - now < 0 ? now + period(rate) : due;
+        }
+
+        /**
+         * Writes as much of what is queued as the channel takes, and waits
+         * for it to be writable if some is left.
+         */
+        private void flush() throws IOException {
+            if (!isConnected) {
+                return;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close(boolean failure) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (isConnected) {
+                connected.decrementAndGet();
+            }
+            if (isPlaying) {
+                playing.decrementAndGet();
+            }
+            if (failure) {
+                failed.incrementAndGet();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close robot connection " + this, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "robot " + robotId + " in room " + (firstRoom + room);
+        }
+    }
+
+    /**
+     * Starts a server with the rooms the robots will join, and returns the id
+     * of the first room.
+     */
+    private static int startServer() throws IOException {
+        Manager manager = new Manager();
+        int firstRoom = -1;
+        for (int i = 0; i < ROBOTS; i += ROBOTS_PER_ROOM) {
+            Room room = new Room(Math.min(ROBOTS_PER_ROOM, ROBOTS - i),
+                                 World.generateRoomWorld(0, 0, Constants.World.WIDTH, Constants.World.HEIGHT));
+            manager.addRoom(room);
+            if (firstRoom == -1) {
+                firstRoom = room.getId();
+            }
+        }
+        Server server = Server.create(manager);
+        Thread t = new Thread(server, "server");
+        t.setDaemon(true);
+        t.start();
+        Thread tickThread = new Thread(() -> manager.loopTickAllRooms(server, true), "tick");
+        tickThread.setDaemon(true);
+        tickThread.start();
+        return firstRoom;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int firstRoom = EMBEDDED ? startServer() : FIRST_ROOM;
+        new LoadGenerator(new InetSocketAddress(HOST, TcpServer.PORT), firstRoom).run();
+    }
+}
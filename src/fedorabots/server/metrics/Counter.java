@@ -0,0 +1,46 @@
+package fedorabots.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A running total, such as a number of bytes, that any thread can add to.
+ */
+public class Counter extends Metric implements CounterMXBean {
+
+    private final LongAdder total = new LongAdder();
+    private long totalAtRotate;
+    private volatile long lastInterval;
+
+    Counter(String name) {
+        super(name);
+    }
+
+    public void add(long amount) {
+        total.add(amount);
+    }
+
+    @Override
+    public synchronized void rotate() {
+        long t = total.sum();
+        lastInterval = t - totalAtRotate;
+        totalAtRotate = t;
+    }
+
+    @Override
+    public String describe() {
+        return "total=" + total.sum() + " interval=" + lastInterval;
+    }
+
+    @Override
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * Returns how much was added during the last interval.
+     */
+    @Override
+    public long getLastInterval() {
+        return lastInterval;
+    }
+}
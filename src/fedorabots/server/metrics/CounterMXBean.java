@@ -0,0 +1,10 @@
+package fedorabots.server.metrics;
+
+/**
+ * What a counter shows through JMX.
+ */
+public interface CounterMXBean {
+    String getName();
+    long getTotal();
+    long getLastInterval();
+}
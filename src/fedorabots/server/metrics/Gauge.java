@@ -0,0 +1,35 @@
+package fedorabots.server.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value, such as the number of entities in a room, that is only read when
+ * it is looked at.
+ */
+public class Gauge extends Metric implements GaugeMXBean {
+
+    private volatile LongSupplier supplier;
+
+    Gauge(String name, LongSupplier supplier) {
+        super(name);
+        this.supplier = supplier;
+    }
+
+    void setSupplier(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public void rotate() {
+    }
+
+    @Override
+    public String describe() {
+        return "value=" + getValue();
+    }
+
+    @Override
+    public long getValue() {
+        return supplier.getAsLong();
+    }
+}
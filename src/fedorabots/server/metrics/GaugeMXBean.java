@@ -0,0 +1,9 @@
+package fedorabots.server.metrics;
+
+/**
+ * What a gauge shows through JMX.
+ */
+public interface GaugeMXBean {
+    String getName();
+    long getValue();
+}
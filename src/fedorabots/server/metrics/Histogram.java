@@ -0,0 +1,181 @@
+package fedorabots.server.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often values fall into buckets whose width grows with the
+ * value, like an HDR histogram, so that percentiles can be read off without
+ * keeping every value.
+ *
+ * <p>Values below 16 have their own bucket and larger ones are split into 8
+ * buckets per power of two, so percentiles are within 12.5% of the real
+ * value. Recording a value is lock free and can be done from any thread.
+ * Histograms made with {@link Metrics#timer(String)} only time one call in
+ * {@link Metrics#SAMPLE_EVERY}, so that timing hot code costs next to
+ * nothing.</p>
+ */
+public class Histogram extends Metric implements HistogramMXBean {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 16;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final int sampleEvery;
+    private long totalCount;
+    private volatile Snapshot last = new Snapshot(0, 0, 0, 0, 0, 0, 0);
+
+    private static class Snapshot {
+        private final long count, total, p50, p90, p99, max;
+        private final double mean;
+
+        private Snapshot(long count, long total, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.total = total;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+    }
+
+    Histogram(String name, int sampleEvery) {
+        super(name);
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Creates a histogram of every value recorded that is not kept by
+     * {@link Metrics}, so its intervals end whenever {@link #rotate()} is
+     * called.
+     */
+    public Histogram(String name) {
+        this(name, 1);
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value that falls into the bucket.
+     */
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    /**
+     * Starts timing a call, returning the time to pass to
+     * {@link #stop(long)}, or 0 if this call is not being sampled.
+     */
+    public long start() {
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since the given time from {@link #start()}.
+     */
+    public void stop(long start) {
+        if (start != 0) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public synchronized void rotate() {
+        long[] interval = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            interval[i] = counts.getAndSet(i, 0);
+        }
+        long n = count.sumThenReset();
+        long s = sum.sumThenReset();
+        long m = max.getAndSet(0);
+        totalCount += n;
+        last = new Snapshot(n, totalCount, n == 0 ? 0 : (double) s / n, percentile(interval, n, 0.5, m),
+                            percentile(interval, n, 0.9, m), percentile(interval, n, 0.99, m), m);
+    }
+
+    private static long percentile(long[] buckets, long n, double fraction, long max) {
+        long rank = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String describe() {
+        Snapshot s = last;
+        return "count=" + s.count + " mean=" + Math.round(s.mean) + " p50=" + s.p50 + " p90=" + s.p90 +
+               " p99=" + s.p99 + " max=" + s.max;
+    }
+
+    @Override
+    public long getCount() {
+        return last.count;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return last.total;
+    }
+
+    @Override
+    public double getMean() {
+        return last.mean;
+    }
+
+    @Override
+    public long getP50() {
+        return last.p50;
+    }
+
+    @Override
+    public long getP90() {
+        return last.p90;
+    }
+
+    @Override
+    public long getP99() {
+        return last.p99;
+    }
+
+    @Override
+    public long getMax() {
+        return last.max;
+    }
+}
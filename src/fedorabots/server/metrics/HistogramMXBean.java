@@ -0,0 +1,16 @@
+package fedorabots.server.metrics;
+
+/**
+ * What a histogram shows through JMX, all of it about the last interval
+ * except for the total count. Times are in nanoseconds.
+ */
+public interface HistogramMXBean {
+    String getName();
+    long getCount();
+    long getTotalCount();
+    double getMean();
+    long getP50();
+    long getP90();
+    long getP99();
+    long getMax();
+}
@@ -0,0 +1,32 @@
+package fedorabots.server.metrics;
+
+/**
+ * A named measurement kept by {@link Metrics}.
+ *
+ * Metrics are read in intervals: every {@link Metrics#INTERVAL} seconds the
+ * values measured since the last interval are put aside, and that is what
+ * JMX and the dump file show.
+ */
+public abstract class Metric {
+
+    private final String name;
+
+    Metric(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Ends the current interval. Metrics kept by {@link Metrics} are rotated
+     * by its reporter, so this is only for metrics created apart from it.
+     */
+    public abstract void rotate();
+
+    /**
+     * Describes the last interval for the dump file.
+     */
+    public abstract String describe();
+}
@@ -0,0 +1,168 @@
+package fedorabots.server.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps the server's metrics and makes them visible.
+ *
+ * <p>Every metric is registered with the platform MBean server under
+ * <code>fedorabots:type=&lt;kind&gt;,name=&lt;name&gt;</code>, so it can be
+ * watched with JConsole or any other JMX client. Every
+ * <code>-Dfedorabots.metricsInterval</code> seconds (10 by default) the
+ * metrics start a new interval, and if <code>-Dfedorabots.metricsFile</code>
+ * is set the last interval of every metric is appended to that file.
+ * Metrics of a room are named <code>room.&lt;id&gt;.&lt;metric&gt;</code>.</p>
+ */
+public class Metrics {
+
+    /** The length of an interval in seconds. */
+    public static final long INTERVAL = Long.getLong("fedorabots.metricsInterval", 10);
+    /** The file metrics are appended to, or null to not write them. */
+    public static final String FILE = System.getProperty("fedorabots.metricsFile");
+    /** Timers time one in this many calls. */
+    public static final int SAMPLE_EVERY = Integer.getInteger("fedorabots.metricsSampleEvery", 16);
+
+    private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+    private static ScheduledExecutorService reporter;
+
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     */
+    public static Histogram histogram(String name) {
+        return get(name, Histogram.class, n -> new Histogram(n, 1));
+    }
+
+    /**
+     * Returns the histogram of sampled times with the given name, creating
+     * it if needed.
+     */
+    public static Histogram timer(String name) {
+        return get(name, Histogram.class, n -> new Histogram(n, SAMPLE_EVERY));
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     */
+    public static Counter counter(String name) {
+        return get(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * Makes the gauge with the given name read its value from the supplier,
+     * creating it if needed.
+     */
+    public static Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = get(name, Gauge.class, n -> new Gauge(n, supplier));
+        gauge.setSupplier(supplier);
+        return gauge;
+    }
+
+    private static <T extends Metric> T get(String name, Class<T> type, Function<String, T> create) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(name, n -> {
+                T created = create.apply(n);
+                register(created);
+                return created;
+            });
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Forgets the metrics whose names start with the prefix, for instance
+     * the metrics of a room that was removed.
+     */
+    public static void remove(String prefix) {
+        List<Metric> removed = new ArrayList<Metric>();
+        for (Metric metric : metrics.values()) {
+            if (metric.getName().startsWith(prefix) && metrics.remove(metric.getName(), metric)) {
+                removed.add(metric);
+            }
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Metric metric : removed) {
+            try {
+                server.unregisterMBean(objectName(metric));
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Could not unregister metric " + metric.getName(), e);
+            }
+        }
+    }
+
+    private static ObjectName objectName(Metric metric) throws JMException {
+        Hashtable<String, String> properties = new Hashtable<String, String>();
+        properties.put("type", metric.getClass().getSimpleName());
+        properties.put("name", metric.getName());
+        return new ObjectName("fedorabots", properties);
+    }
+
+    private static void register(Metric metric) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric, objectName(metric));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register metric " + metric.getName() + " with JMX", e);
+        }
+        startReporter();
+    }
+
+    private static synchronized void startReporter() {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(Metrics::report, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts a new interval for every metric, and writes the last one to
+     * {@link #FILE}.
+     */
+    static void report() {
+        String time = Instant.now().toString();
+        List<String> lines = new ArrayList<String>(metrics.size());
+        for (Metric metric : metrics.values()) {
+            metric.rotate();
+            lines.add(time + " " + metric.getName() + " " + metric.describe());
+        }
+        if (FILE != null) {
+            try {
+                Files.write(Paths.get(FILE), lines, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not write metrics to " + FILE, e);
+            }
+        }
+    }
+}
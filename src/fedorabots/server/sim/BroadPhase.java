@@ -0,0 +1,153 @@
+package fedorabots.server.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import fedorabots.server.sim.entity.Entity;
+
+/**
+ * Finds pairs of colliding entities with sweep and prune.
+ *
+ * Entities are kept sorted by the left edge of their bounding box. Since
+ * entities barely move between ticks the order from the previous tick is
+ * reused and fixed with an insertion sort, which is close to linear. Each
+ * colliding pair is reported exactly once.
+ */
+public class BroadPhase {
+
+	// The number of entities each thread searches when finding pairs in parallel
+	private static final int PARALLEL_CHUNK = 1024;
+
+	private Entity[] sorted = new Entity[64];
+	private double[] minX = new double[64];
+	private int size;
+	// Pairs found by each strip, stored as consecutive entries
+	private final List<List<Entity>> pairs = new ArrayList<List<Entity>>();
+
+	/**
+	 * Brings the sorted entities up to date with the entities bound to the
+	 * store. This must be called after {@link EntityStore#sync}.
+	 */
+	public void update(EntityStore store) {
+		List<Entity> added = store.getAdded();
+		int stamp = store.getStamp();
+
+		// Drop entities that the last sync did not see, then append new ones
+		int n = 0;
+		for(int i = 0; i < size; i++) {
+			if(sorted[i].getStamp() == stamp) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		Arrays.fill(sorted, n, size, null);
+		size = n;
+		if(size + added.size() > sorted.length) {
+			int capacity = Math.max(sorted.length * 2, size + added.size());
+			sorted = Arrays.copyOf(sorted, capacity);
+			minX = new double[capacity];
+		}
+		for(Entity e : added) {
+			sorted[size++] = e;
+		}
+
+		for(int i = 0; i < size; i++) {
+			minX[i] = sorted[i].getX() - sorted[i].getRadius();
+		}
+		insertionSort();
+	}
+
+	private void insertionSort() {
+		for(int i = 1; i < size; i++) {
+			Entity e = sorted[i];
+			double key = minX[i];
+			int j = i - 1;
+			while(j >= 0 && minX[j] > key) {
+				sorted[j + 1] = sorted[j];
+				minX[j + 1] = minX[j];
+				j--;
+			}
+			sorted[j + 1] = e;
+			minX[j + 1] = key;
+		}
+	}
+
+	/**
+	 * Passes every pair of overlapping entities to the consumer, once per
+	 * pair. This must be called after {@link #update(EntityStore)}.
+	 */
+	public void forEachPair(BiConsumer<Entity, Entity> consumer) {
+		for(int i = 0; i < size; i++) {
+			Entity a = sorted[i];
+			double maxX = a.getX() + a.getRadius();
+			for(int j = i + 1; j < size && minX[j] <= maxX; j++) {
+				Entity b = sorted[j];
+				if(overlap(a, b)) {
+					consumer.accept(a, b);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #forEachPair(BiConsumer)}, but the pairs are found in
+	 * parallel. The sorted entities are split into strips along the x axis
+	 * that are searched on the common fork/join pool, and the pairs found
+	 * (including the pairs that cross into the next strip) are then passed to
+	 * the consumer on this thread, in the same order as forEachPair would.
+	 * Pairs are found from the positions at the start of the call and are not
+	 * checked again before they are passed on, so the consumer must not move
+	 * entities (it may change their velocities, as
+	 * {@link fedorabots.server.sim.entity.PhysicsEntity#collide} does).
+	 * Otherwise the pairs would differ from those forEachPair finds.
+	 */
+	public void forEachPairParallel(BiConsumer<Entity, Entity> consumer) {
+		int chunks = (size + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+		if(chunks < 2) {
+			forEachPair(consumer);
+			return;
+		}
+		while(pairs.size() < chunks) {
+			pairs.add(new ArrayList<Entity>());
+		}
+		IntStream.range(0, chunks).parallel().forEach(c -> {
+			List<Entity> found = pairs.get(c);
+			for(int i = c * PARALLEL_CHUNK, end = Math.min(size, (c + 1) * PARALLEL_CHUNK); i < end; i++) {
+				Entity a = sorted[i];
+				double maxX = a.getX() + a.getRadius();
+				for(int j = i + 1; j < size && minX[j] <= maxX; j++) {
+					if(overlap(a, sorted[j])) {
+						found.add(a);
+						found.add(sorted[j]);
+					}
+				}
+			}
+		});
+		for(int c = 0; c < chunks; c++) {
+			List<Entity> found = pairs.get(c);
+			for(int k = 0; k < found.size(); k += 2) {
+				consumer.accept(found.get(k), found.get(k + 1));
+			}
+			found.clear();
+		}
+	}
+
+	private static boolean overlap(Entity a, Entity b) {
+		double r = a.getRadius() + b.getRadius();
+		double dy = a.getY() - b.getY();
+		if(Math.abs(dy) <= r) {
+			double dx = a.getX() - b.getX();
+			return dx * dx + dy * dy <= r * r;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of entities being tracked
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,72 @@
+package fedorabots.server.sim;
+
+import java.util.ArrayDeque;
+
+import fedorabots.server.sim.entity.Bullet;
+
+/**
+ * Keeps bullets that left their world so that new bullets can reuse them
+ * instead of being allocated.
+ *
+ * Bullets are returned to the pool by the {@link EntityStore} once it has
+ * freed their slots, so a bullet is never reused while anything in the sim
+ * still refers to it. Like the world, the pool is not thread safe, so callers
+ * must synchronize on the world.
+ */
+public class BulletPool {
+
+	/** The most bullets kept in the pool. */
+	public static final int MAX_POOLED = 256;
+
+	private final ArrayDeque<Bullet> free = new ArrayDeque<Bullet>();
+	private long created, reused;
+	// Numbers the bullets handed out, see Bullet#setHash
+	private int handedOut;
+
+	/**
+	 * Returns a bullet with the given state that is not in any world,
+	 * reusing a pooled one if there is one.
+	 */
+	public Bullet acquire(double x, double y, double radius, double mass, double vx, double vy) {
+		Bullet bullet = free.poll();
+		if(bullet == null) {
+			created++;
+			bullet = new Bullet(x, y, radius, mass, vx, vy);
+		} else {
+			reused++;
+			bullet.reset(x, y, radius, mass, vx, vy);
+		}
+		bullet.setHash(++handedOut);
+		return bullet;
+	}
+
+	/**
+	 * Returns a bullet that left its world to the pool.
+	 */
+	public void release(Bullet bullet) {
+		if(free.size() < MAX_POOLED) {
+			free.push(bullet);
+		}
+	}
+
+	/**
+	 * @return the number of bullets waiting to be reused
+	 */
+	public int size() {
+		return free.size();
+	}
+
+	/**
+	 * @return the number of bullets the pool had to allocate
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the number of bullets the pool handed out again
+	 */
+	public long getReused() {
+		return reused;
+	}
+}
@@ -0,0 +1,304 @@
+package fedorabots.server.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Bullet;
+import fedorabots.server.sim.entity.Entity;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Keeps the physical state of every entity in a world in parallel arrays
+ * indexed by slot, so that the simulation can integrate all entities in one
+ * tight loop.
+ *
+ * Entities are bound to a slot when the store first sees them in the world
+ * and unbound once they leave it. While bound, an {@link Entity} is only a
+ * handle that reads and writes its slot.
+ */
+public class EntityStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+	// The number of slots each thread advances when integrating in parallel
+	private static final int PARALLEL_CHUNK = 1024;
+	/**
+	 * Entities that moved further than this in one step (for instance by
+	 * wrapping around a scrolling world) are not interpolated.
+	 */
+	private static final double MAX_INTERPOLATED_DISTANCE = Math.min(Constants.World.WIDTH, Constants.World.HEIGHT) / 2;
+
+	public double[] x, y, rotation, radius;
+	public double[] vx, vy, ax, ay, mass, maxSpeed;
+	private double[] nextX, nextY;
+	private double[] prevX, prevY;
+	// Positions before the last integration, which fast bullets are swept from
+	private double[] startX, startY;
+	private double alpha = 1;
+	private Entity[] handles;
+	private int[] freeSlots;
+	private int numFree;
+	private int high;
+
+	private int stamp = 1;
+	private List<Entity> added = new ArrayList<Entity>();
+	private final Consumer<Entity> tracker = this::track;
+
+	public EntityStore() {
+		x = new double[INITIAL_CAPACITY];
+		y = new double[INITIAL_CAPACITY];
+		rotation = new double[INITIAL_CAPACITY];
+		radius = new double[INITIAL_CAPACITY];
+		vx = new double[INITIAL_CAPACITY];
+		vy = new double[INITIAL_CAPACITY];
+		ax = new double[INITIAL_CAPACITY];
+		ay = new double[INITIAL_CAPACITY];
+		mass = new double[INITIAL_CAPACITY];
+		maxSpeed = new double[INITIAL_CAPACITY];
+		nextX = new double[INITIAL_CAPACITY];
+		nextY = new double[INITIAL_CAPACITY];
+		prevX = new double[INITIAL_CAPACITY];
+		prevY = new double[INITIAL_CAPACITY];
+		startX = new double[INITIAL_CAPACITY];
+		startY = new double[INITIAL_CAPACITY];
+		handles = new Entity[INITIAL_CAPACITY];
+		freeSlots = new int[INITIAL_CAPACITY];
+	}
+
+	private void grow() {
+		int capacity = handles.length * 2;
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		rotation = Arrays.copyOf(rotation, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		vx = Arrays.copyOf(vx, capacity);
+		vy = Arrays.copyOf(vy, capacity);
+		ax = Arrays.copyOf(ax, capacity);
+		ay = Arrays.copyOf(ay, capacity);
+		mass = Arrays.copyOf(mass, capacity);
+		maxSpeed = Arrays.copyOf(maxSpeed, capacity);
+		nextX = new double[capacity];
+		nextY = new double[capacity];
+		prevX = Arrays.copyOf(prevX, capacity);
+		prevY = Arrays.copyOf(prevY, capacity);
+		startX = Arrays.copyOf(startX, capacity);
+		startY = Arrays.copyOf(startY, capacity);
+		handles = Arrays.copyOf(handles, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+	}
+
+	private int allocate() {
+		if(numFree > 0) {
+			return freeSlots[--numFree];
+		}
+		if(high == handles.length) {
+			grow();
+		}
+		return high++;
+	}
+
+	/**
+	 * Binds the entity to a free slot and returns the slot.
+	 */
+	public int bind(Entity entity) {
+		int slot = allocate();
+		handles[slot] = entity;
+		entity.bind(this, slot);
+		prevX[slot] = x[slot];
+		prevY[slot] = y[slot];
+		startX[slot] = x[slot];
+		startY[slot] = y[slot];
+		return slot;
+	}
+
+	/**
+	 * Copies the state in the slot back into its entity and frees the slot.
+	 */
+	public void unbind(int slot) {
+		handles[slot].unbind();
+		handles[slot] = null;
+		// Leave free slots at rest so the integration loop can skip checking them
+		vx[slot] = vy[slot] = ax[slot] = ay[slot] = 0;
+		freeSlots[numFree++] = slot;
+	}
+
+	/**
+	 * Binds entities that entered the world since the last sync and unbinds
+	 * the ones that left it. Bullets that left are returned to the world's
+	 * {@link BulletPool}.
+	 */
+	public void sync(World world) {
+		added.clear();
+		stamp++;
+		world.forEachUnsafe(tracker);
+		for(int s = 0; s < high; s++) {
+			Entity e = handles[s];
+			if(e != null && e.getStamp() != stamp) {
+				unbind(s);
+				if(e instanceof Bullet) {
+					world.getBulletPool().release((Bullet) e);
+				}
+			}
+		}
+		for(Entity e : added) {
+			bind(e);
+		}
+	}
+
+	private void track(Entity e) {
+		// Entities that were bound after the last sync have the previous stamp
+		if(e.getStamp() != stamp - 1) {
+			added.add(e);
+		}
+		e.setStamp(stamp);
+	}
+
+	/**
+	 * Moves every entity by its velocity and accelerates it over the given
+	 * number of milliseconds, then updates the entities' places in the world.
+	 */
+	public void integrate(double millis) {
+		integrate(millis, false);
+	}
+
+	/**
+	 * Like {@link #integrate(double)}, but if <code>parallel</code> is true
+	 * the slots are advanced in chunks on the common fork/join pool. Entities
+	 * are still moved in the world one at a time, since the world is not
+	 * thread safe.
+	 */
+	public void integrate(double millis, boolean parallel) {
+		System.arraycopy(x, 0, startX, 0, high);
+		System.arraycopy(y, 0, startY, 0, high);
+		if(parallel && high > PARALLEL_CHUNK) {
+			int chunks = (high + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+			IntStream.range(0, chunks).parallel().forEach(c ->
+				advance(c * PARALLEL_CHUNK, Math.min(high, (c + 1) * PARALLEL_CHUNK), millis));
+		} else {
+			advance(0, high, millis);
+		}
+		for(int s = 0; s < high; s++) {
+			if(handles[s] != null && (nextX[s] != x[s] || nextY[s] != y[s])) {
+				handles[s].setPosition(nextX[s], nextY[s]);
+			}
+		}
+	}
+
+	private void advance(int from, int to, double millis) {
+		for(int s = from; s < to; s++) {
+			nextX[s] = x[s] + vx[s] * millis;
+			nextY[s] = y[s] + vy[s] * millis;
+			double nvx = vx[s] + ax[s] * millis;
+			double nvy = vy[s] + ay[s] * millis;
+			double v2 = nvx * nvx + nvy * nvy;
+			if(v2 > maxSpeed[s] * maxSpeed[s]) {
+				double scale = maxSpeed[s] / Math.sqrt(v2);
+				nvx *= scale;
+				nvy *= scale;
+			}
+			vx[s] = nvx;
+			vy[s] = nvy;
+		}
+	}
+
+	/**
+	 * Remembers the current positions so that positions can be interpolated
+	 * between them and the positions after the next step.
+	 */
+	public void savePrevious() {
+		System.arraycopy(x, 0, prevX, 0, high);
+		System.arraycopy(y, 0, prevY, 0, high);
+	}
+
+	/**
+	 * Sets how far between the previous and current positions rendered
+	 * positions should be, where 1 means the current positions.
+	 */
+	public void setAlpha(double alpha) {
+		this.alpha = alpha;
+	}
+
+	/**
+	 * @return the x position of the slot interpolated by the current alpha
+	 */
+	public double renderX(int slot) {
+		return interpolate(prevX[slot], x[slot]);
+	}
+
+	/**
+	 * @return the y position of the slot interpolated by the current alpha
+	 */
+	public double renderY(int slot) {
+		return interpolate(prevY[slot], y[slot]);
+	}
+
+	private double interpolate(double prev, double current) {
+		if(alpha >= 1 || Math.abs(current - prev) > MAX_INTERPOLATED_DISTANCE) {
+			return current;
+		}
+		return prev + (current - prev) * alpha;
+	}
+
+	/**
+	 * @return the x position of the slot before the last integration
+	 */
+	public double startX(int slot) {
+		return startX[slot];
+	}
+
+	/**
+	 * @return the y position of the slot before the last integration
+	 */
+	public double startY(int slot) {
+		return startY[slot];
+	}
+
+	/**
+	 * Passes every bound entity that is not marked for removal to the
+	 * consumer.
+	 */
+	public void forEachBound(Consumer<Entity> consumer) {
+		for(int s = 0; s < high; s++) {
+			Entity e = handles[s];
+			if(e != null && !e.markedForRemoval()) {
+				consumer.accept(e);
+			}
+		}
+	}
+
+	/**
+	 * Ticks every bound entity that is not marked for removal.
+	 */
+	public void tick(double millis, World world) {
+		for(int s = 0; s < high; s++) {
+			Entity e = handles[s];
+			if(e != null && !e.markedForRemoval()) {
+				e.tick(millis, world);
+			}
+		}
+	}
+
+	/**
+	 * @return the stamp of the last sync
+	 */
+	public int getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * @return the entities that were bound during the last sync
+	 */
+	public List<Entity> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the number of bound entities
+	 */
+	public int size() {
+		return high - numFree;
+	}
+}
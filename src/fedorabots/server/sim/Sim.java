@@ -5,7 +5,9 @@ package fedorabots.server.sim;
 
 import java.util.function.DoubleConsumer;
 
-import fedorabots.common.Profiler;
+import fedorabots.server.metrics.Histogram;
+import fedorabots.server.metrics.Metrics;
+import fedorabots.server.sim.entity.PhysicsEntity;
 import fedorabots.server.sim.world.World;
 
 /**
@@ -14,10 +16,32 @@ import fedorabots.server.sim.world.World;
  */
 public class Sim {
 	private World world;
+	private EntityStore store = new EntityStore();
+	private BroadPhase broadPhase = new BroadPhase();
+	private SweptCollisions sweptCollisions = new SweptCollisions();
 	private long prev;
 	private boolean startedTicking;
+	// Fixed timestep mode, which is off while fixedStep is 0
+	private double fixedStep;
+	private int maxSubSteps;
+	private double accumulator;
+	private boolean deterministic;
 	// public static final long MAX_TICK_LENGTH = 160 * (long)1e6;
 	public static final long MIN_TICK_LENGTH = 40 * (long)1e6;
+	/**
+	 * Whether large worlds are integrated and searched for collisions on
+	 * several threads, set with <code>-Dfedorabots.parallelSim=true</code>.
+	 */
+	public static final boolean PARALLEL = Boolean.getBoolean("fedorabots.parallelSim");
+	/** The number of entities from which a parallel sim uses several threads. */
+	public static final int PARALLEL_THRESHOLD = Integer.getInteger("fedorabots.parallelThreshold", 4096);
+
+	private static final Histogram SYNC_TIME = Metrics.timer("sim.syncTime");
+	private static final Histogram INTEGRATE_TIME = Metrics.timer("sim.integrateTime");
+	private static final Histogram TICK_ENTITIES_TIME = Metrics.timer("sim.tickEntitiesTime");
+	private static final Histogram COLLIDE_TIME = Metrics.timer("sim.collideTime");
+	private static final Histogram REMOVE_MARKED_TIME = Metrics.timer("sim.removeMarkedTime");
+	private static final Histogram BROADCAST_TIME = Metrics.timer("sim.broadcastTime");
 
 	public Sim(World world) {
 		this.world = world;
@@ -30,39 +54,21 @@ public class Sim {
 		}
 
 		long ctm = System.nanoTime();
-		long nanoLength = ctm - prev;
+		long nanoLength = deterministic ? MIN_TICK_LENGTH : ctm - prev;
 		double millilength = nanoLength / 1e6;
 
-		Profiler.time("Tick entities");
-		world.forEach((e) -> e.tick(millilength, world));
-		Profiler.timeEnd("Tick entities");
-		Profiler.time("Remove marked");
-		world.removeMarked();
-		Profiler.timeEnd("Remove marked");
+		advance(millilength);
 		prev += nanoLength;
-		Profiler.time("Broadcast");
+		long start = BROADCAST_TIME.start();
 		tick.accept(millilength);
-		Profiler.timeEnd("Broadcast");
-
-		Profiler.printTimes(1000);
+		BROADCAST_TIME.stop(start);
 
 		return System.nanoTime() - ctm;
 	}
 
 	public void run(DoubleConsumer tick) {
-		long prev = System.nanoTime();
 		while(true) {
-			long ctm = System.nanoTime();
-			long nanoLength = ctm - prev;
-			double millilength = nanoLength / 1e6;
-
-			world.forEach((e) -> e.tick(millilength, world));
-			world.removeMarked();
-			prev += nanoLength;
-			tick.accept(millilength);
-			// System.out.println("tick of length: " + millilength);
-
-			long took = System.nanoTime() - ctm;
+			long took = tick(tick);
 			try {
 				Thread.sleep(Math.max(0, (MIN_TICK_LENGTH-took)/(long)1e6));
 			} catch (InterruptedException e) {
@@ -71,6 +77,107 @@ public class Sim {
 		}
 	}
 
+	/**
+	 * Makes the sim advance in steps of a fixed length instead of by the time
+	 * that passed since the last tick. Time that passes is accumulated and
+	 * spent in steps of <code>stepMillis</code>, with at most
+	 * <code>maxSubSteps</code> steps per tick (any time left over after that is
+	 * dropped so that a slow tick cannot snowball). A step length of 0 turns
+	 * fixed timesteps off.
+	 */
+	public void setFixedTimestep(double stepMillis, int maxSubSteps) {
+		this.fixedStep = stepMillis;
+		this.maxSubSteps = maxSubSteps;
+		accumulator = 0;
+		store.setAlpha(1);
+	}
+
+	/**
+	 * Makes every tick advance the sim by {@link #MIN_TICK_LENGTH} however
+	 * much time actually passed, so that where the sim ends up only depends on
+	 * the number of ticks and not on how long they took.
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	public boolean isFixedTimestep() {
+		return fixedStep > 0;
+	}
+
+	/**
+	 * @return the length of a step in fixed timestep mode, in milliseconds
+	 */
+	public double getFixedStep() {
+		return fixedStep;
+	}
+
+	/**
+	 * @return the most steps run per tick in fixed timestep mode
+	 */
+	public int getMaxSubSteps() {
+		return maxSubSteps;
+	}
+
+	private void advance(double millis) {
+		if (!isFixedTimestep()) {
+			step(millis);
+			return;
+		}
+
+		accumulator += millis;
+		int steps = 0;
+		while (accumulator >= fixedStep && steps < maxSubSteps) {
+			store.savePrevious();
+			step(fixedStep);
+			accumulator -= fixedStep;
+			steps++;
+		}
+		if (accumulator >= fixedStep) {
+			accumulator %= fixedStep;
+		}
+		// Positions sent to clients are interpolated between the last two
+		// steps by how far the leftover time is into the next step
+		store.setAlpha(accumulator / fixedStep);
+	}
+
+	/**
+	 * Advances every entity in the world by the given number of milliseconds,
+	 * then resolves the collisions of bullets that moved far enough to pass
+	 * through something and the collisions found by the broad phase. Worlds
+	 * with at least {@link #PARALLEL_THRESHOLD} entities are integrated and
+	 * searched for collisions in parallel if {@link #PARALLEL} is set, but
+	 * collisions are always resolved one at a time in the same order.
+	 */
+	private void step(double millis) {
+		long start = SYNC_TIME.start();
+		store.sync(world);
+		SYNC_TIME.stop(start);
+		boolean parallel = PARALLEL && store.size() >= PARALLEL_THRESHOLD;
+		start = INTEGRATE_TIME.start();
+		store.integrate(millis, parallel);
+		INTEGRATE_TIME.stop(start);
+		start = TICK_ENTITIES_TIME.start();
+		store.tick(millis, world);
+		TICK_ENTITIES_TIME.stop(start);
+		start = COLLIDE_TIME.start();
+		sweptCollisions.sweep(store, world);
+		broadPhase.update(store);
+		if(parallel) {
+			broadPhase.forEachPairParallel(PhysicsEntity::collide);
+		} else {
+			broadPhase.forEachPair(PhysicsEntity::collide);
+		}
+		COLLIDE_TIME.stop(start);
+		start = REMOVE_MARKED_TIME.start();
+		world.removeMarked();
+		REMOVE_MARKED_TIME.stop(start);
+	}
+
 	/**
 	 * @return the world
 	 */
@@ -84,5 +191,7 @@ public class Sim {
 	 */
 	public void setWorld(World world) {
 		this.world = world;
+		store = new EntityStore();
+		broadPhase = new BroadPhase();
 	}
 }
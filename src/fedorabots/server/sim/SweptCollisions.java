@@ -0,0 +1,140 @@
+package fedorabots.server.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Bullet;
+import fedorabots.server.sim.entity.Entity;
+import fedorabots.server.sim.entity.PhysicsEntity;
+import fedorabots.server.sim.world.World;
+
+/**
+ * Finds the collisions of bullets that moved so far in one step that they
+ * could have passed through something, which the overlap tests of the
+ * {@link BroadPhase} would miss.
+ *
+ * A bullet that moved further than its radius is swept from where it was
+ * before the step to where it is now. The entities near its path are taken
+ * from the world's index, and for each the time at which the two circles
+ * first touch is solved for (taking into account how far the other entity
+ * moved). The bullet is moved back to where it hit the first of them, and
+ * the collision is resolved there.
+ */
+public class SweptCollisions {
+
+	/**
+	 * Bullets that moved further than this in one step (for instance by
+	 * wrapping around a scrolling world) jumped rather than moved, so they are
+	 * not swept.
+	 */
+	private static final double MAX_SWEPT_DISTANCE = Math.min(Constants.World.WIDTH, Constants.World.HEIGHT) / 2;
+
+	private final List<Bullet> fast = new ArrayList<Bullet>();
+	private final List<Entity> candidates = new ArrayList<Entity>();
+	private final Consumer<Entity> collectFast = this::collectFast;
+	private final Consumer<Entity> collectCandidate = candidates::add;
+	private EntityStore store;
+
+	private void collectFast(Entity e) {
+		if(e instanceof Bullet) {
+			int slot = e.getSlot();
+			double dx = e.getX() - store.startX(slot);
+			double dy = e.getY() - store.startY(slot);
+			double d2 = dx * dx + dy * dy;
+			double r = e.getRadius();
+			if(d2 > r * r && d2 < MAX_SWEPT_DISTANCE * MAX_SWEPT_DISTANCE) {
+				fast.add((Bullet) e);
+			}
+		}
+	}
+
+	/**
+	 * Resolves the first collision along the path of every fast bullet bound
+	 * to the store. This must be called after {@link EntityStore#integrate}
+	 * and before the broad phase is updated, since bullets that hit something
+	 * are moved.
+	 */
+	public void sweep(EntityStore store, World world) {
+		this.store = store;
+		fast.clear();
+		store.forEachBound(collectFast);
+		for(int i = 0; i < fast.size(); i++) {
+			Bullet bullet = fast.get(i);
+			if(!bullet.markedForRemoval()) {
+				sweep(bullet, world);
+			}
+		}
+		fast.clear();
+		this.store = null;
+	}
+
+	private void sweep(Bullet bullet, World world) {
+		int slot = bullet.getSlot();
+		double x0 = store.startX(slot), y0 = store.startY(slot);
+		double dx = bullet.getX() - x0, dy = bullet.getY() - y0;
+		double r = bullet.getRadius();
+
+		candidates.clear();
+		world.forCollidingUnsafe(Math.min(x0, x0 + dx) - r, Math.min(y0, y0 + dy) - r,
+								 Math.abs(dx) + 2 * r, Math.abs(dy) + 2 * r, collectCandidate);
+
+		Entity first = null;
+		double firstTime = 1;
+		for(int i = 0; i < candidates.size(); i++) {
+			Entity other = candidates.get(i);
+			if(other == bullet || other.markedForRemoval() || !(other instanceof PhysicsEntity)) {
+				continue;
+			}
+			double ox0 = other.getX(), oy0 = other.getY();
+			if(other.getSlot() != -1) {
+				double sx = store.startX(other.getSlot()), sy = store.startY(other.getSlot());
+				double odx = ox0 - sx, ody = oy0 - sy;
+				// Entities that wrapped around the world are taken to be
+				// standing where they ended up, like the bullets that are not swept
+				if(odx * odx + ody * ody < MAX_SWEPT_DISTANCE * MAX_SWEPT_DISTANCE) {
+					ox0 = sx;
+					oy0 = sy;
+				}
+			}
+			double t = timeOfImpact(x0 - ox0, y0 - oy0, dx - (other.getX() - ox0), dy - (other.getY() - oy0),
+									r + other.getRadius());
+			if(t >= 0 && t < firstTime) {
+				first = other;
+				firstTime = t;
+			}
+		}
+		candidates.clear();
+
+		if(first != null) {
+			bullet.setPosition(x0 + dx * firstTime, y0 + dy * firstTime);
+			PhysicsEntity.collide(bullet, first);
+		}
+	}
+
+	/**
+	 * Returns the fraction of the step at which two circles that start
+	 * <code>(px, py)</code> apart and move <code>(mx, my)</code> relative to
+	 * each other first touch, or -1 if they do not touch during the step or
+	 * were already touching at its start (which the broad phase handles).
+	 */
+	static double timeOfImpact(double px, double py, double mx, double my, double radius) {
+		double c = px * px + py * py - radius * radius;
+		double a = mx * mx + my * my;
+		if(c <= 0 || a == 0) {
+			return -1;
+		}
+		double b = px * mx + py * my;
+		if(b >= 0) {
+			// Moving apart
+			return -1;
+		}
+		double discriminant = b * b - a * c;
+		if(discriminant < 0) {
+			return -1;
+		}
+		double t = (-b - Math.sqrt(discriminant)) / a;
+		return t <= 1 ? t : -1;
+	}
+}
@@ -5,6 +5,9 @@ import javafx.geometry.Point2D;
 
 public class Bullet extends PhysicsEntity {
 
+	private short bulletId;
+	private int hash = System.identityHashCode(this);
+
 	public Bullet(double x, double y, double radius, double mass, double vx, double vy)
 	{
 		super((short) 0, null, x, y, 0, radius, mass, vx, vy, 0, 0);
@@ -14,6 +17,16 @@ public class Bullet extends PhysicsEntity {
 		super((short) 0, null, x, y, 0, radius, mass);
 	}
 
+	/**
+	 * Gives a bullet that left its world a new state, so that it can be fired
+	 * again (see {@link fedorabots.server.sim.BulletPool}). The bullet gets a
+	 * new bullet id once it is next sent to clients.
+	 */
+	public void reset(double x, double y, double radius, double mass, double vx, double vy) {
+		reset(x, y, 0, radius, mass, vx, vy, 0, 0);
+		bulletId = 0;
+	}
+
 	@Override
 	public void resolveCollision(PhysicsEntity other) {
 		super.resolveCollision(other);
@@ -30,6 +43,48 @@ public class Bullet extends PhysicsEntity {
 		}
 	}
 
+	/**
+	 * Returns the id that state messages use to refer to the bullet, which
+	 * is 0 until one has been assigned.
+	 */
+	public short getBulletId() {
+		return bulletId;
+	}
+
+	/**
+	 * @param bulletId the id that state messages use to refer to the bullet
+	 */
+	public void setBulletId(short bulletId) {
+		this.bulletId = bulletId;
+	}
+
+	/**
+	 * Bullets are only equal to themselves. Two bullets fired at the same
+	 * time in the same direction would otherwise be equal, and one of them
+	 * would be lost by the worlds' sets, and pooled bullets are reused with
+	 * the same state as bullets that are still flying.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Sets the number the bullet hashes to, which is its identity hash code
+	 * until it is set. {@link fedorabots.server.sim.BulletPool}s number the
+	 * bullets they hand out, so that worlds (which keep entities in hash sets)
+	 * go through the same bullets in the same order every time a game is
+	 * played. This must not be called while the bullet is in a world.
+	 */
+	public void setHash(int hash) {
+		this.hash = hash;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
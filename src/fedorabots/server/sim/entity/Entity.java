@@ -5,6 +5,7 @@ package fedorabots.server.sim.entity;
 
 import java.awt.Color;
 
+import fedorabots.server.sim.EntityStore;
 import fedorabots.server.sim.world.World;
 
 /**
@@ -17,6 +18,13 @@ public abstract class Entity {
 	private double x, y, rotation, radius;
 	private World world;
 	private boolean toBeRemoved;
+	private int stamp;
+	// Where the entity is in its world's list of entities of its type
+	private int bucketIndex = -1;
+	// While bound to a store, the entity's state lives in the store's slot
+	// and the fields above are stale.
+	private EntityStore store;
+	private int slot = -1;
 
 	/**
 	 * @param x
@@ -35,6 +43,61 @@ public abstract class Entity {
 
 	public void tick(double millis, World world){}
 
+	/**
+	 * Gives an entity that left its world a new state so that it can be added
+	 * to a world again, as if it had just been created.
+	 */
+	protected void reset(double x, double y, double rotation, double radius) {
+		if(store != null) {
+			throw new IllegalStateException("Cannot reset " + this + " while it is bound to a store");
+		}
+		this.x = x;
+		this.y = y;
+		this.rotation = rotation;
+		this.radius = radius;
+		world = null;
+		toBeRemoved = false;
+	}
+
+	/**
+	 * Copies the entity's state into a slot of the store. Until it is unbound,
+	 * the entity reads and writes that slot.
+	 */
+	public void bind(EntityStore store, int slot) {
+		store.x[slot] = x;
+		store.y[slot] = y;
+		store.rotation[slot] = rotation;
+		store.radius[slot] = radius;
+		this.store = store;
+		this.slot = slot;
+	}
+
+	/**
+	 * Copies the entity's state back out of its store slot.
+	 */
+	public void unbind() {
+		x = store.x[slot];
+		y = store.y[slot];
+		rotation = store.rotation[slot];
+		radius = store.radius[slot];
+		store = null;
+		slot = -1;
+	}
+
+	/**
+	 * @return the store the entity is bound to, or null
+	 */
+	protected EntityStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return the slot of the entity in its store, or -1 if it is not bound
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -45,7 +108,7 @@ public abstract class Entity {
 		result = prime * result + ((color == null) ? 0 : color.hashCode());
 		result = prime * result + id;
 		long temp;
-		temp = Double.doubleToLongBits(radius);
+		temp = Double.doubleToLongBits(getRadius());
 		result = prime * result + (int) (temp ^ (temp >>> 32));
 		return result;
 	}
@@ -69,7 +132,7 @@ public abstract class Entity {
 			return false;
 		if(id != other.id)
 			return false;
-		if(Double.doubleToLongBits(radius) != Double.doubleToLongBits(other.radius))
+		if(Double.doubleToLongBits(getRadius()) != Double.doubleToLongBits(other.getRadius()))
 			return false;
 		return true;
 	}
@@ -92,57 +155,74 @@ public abstract class Entity {
 	 * @return the x
 	 */
 	public double getX() {
-		return x;
+		return store != null ? store.x[slot] : x;
 	}
 
 	/**
 	 * @return the y
 	 */
 	public double getY() {
-		return y;
+		return store != null ? store.y[slot] : y;
+	}
+
+	/**
+	 * Returns the x position to show to clients. This is the same as
+	 * {@link #getX()} unless the simulation interpolates between steps.
+	 */
+	public double getRenderX() {
+		return store != null ? store.renderX(slot) : x;
+	}
+
+	/**
+	 * Returns the y position to show to clients. This is the same as
+	 * {@link #getY()} unless the simulation interpolates between steps.
+	 */
+	public double getRenderY() {
+		return store != null ? store.renderY(slot) : y;
 	}
 
 	/**
 	 * @return the rotation
 	 */
 	public double getRotation() {
-		return rotation;
+		return store != null ? store.rotation[slot] : rotation;
 	}
 
 	/**
 	 * @return the radius
 	 */
 	public double getRadius() {
-		return radius;
+		return store != null ? store.radius[slot] : radius;
 	}
 
 	/**
 	 * @param x the x to set
 	 */
 	public void setX(double x) {
-		setPosition(x, y);
+		setPosition(x, getY());
 	}
 
 	/**
 	 * @param y the y to set
 	 */
 	public void setY(double y) {
-		setPosition(x, y);
+		setPosition(getX(), y);
 	}
 
 	/**
 	 * @param rot the rotation to set
 	 */
 	public void setRotation(double rot) {
-		this.rotation = rot;
+		if(store != null) {
+			store.rotation[slot] = rot;
+		} else {
+			this.rotation = rot;
+		}
 	}
 
 	public void setPosition(double x, double y){
 		if(world != null){
-			world.remove(this);
-			this.x = x;
-			this.y = y;
-			world.add(this);
+			world.move(this, x, y);
 		}
 	}
 
@@ -154,15 +234,24 @@ public abstract class Entity {
 	 * world after the move.
 	 */
 	public void setPositionUnsafe(double x, double y) {
-		this.x = x;
-		this.y = y;
+		if(store != null) {
+			store.x[slot] = x;
+			store.y[slot] = y;
+		} else {
+			this.x = x;
+			this.y = y;
+		}
 	}
 
 	/**
 	 * @param radius the radius to set
 	 */
 	public void setRadius(double radius) {
-		this.radius = radius;
+		if(store != null) {
+			store.radius[slot] = radius;
+		} else {
+			this.radius = radius;
+		}
 	}
 
 	/**
@@ -180,6 +269,9 @@ public abstract class Entity {
 	}
 
 	public void markForRemoval() {
+		if(toBeRemoved) {
+			return;
+		}
 		toBeRemoved = true;
 		world.markForRemoval(this);
 	}
@@ -188,11 +280,42 @@ public abstract class Entity {
 		return toBeRemoved;
 	}
 
+	/**
+	 * Returns the stamp of the last simulation pass that saw this entity.
+	 * This is only used by the simulation to track which entities it already
+	 * knows about.
+	 */
+	public int getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * @param stamp the stamp to set
+	 */
+	public void setStamp(int stamp) {
+		this.stamp = stamp;
+	}
+
+	/**
+	 * Returns the index of the entity in the list its world keeps of entities
+	 * of its type, or -1 if it is not in one. This is only used by the world.
+	 */
+	public int getBucketIndex() {
+		return bucketIndex;
+	}
+
+	/**
+	 * @param bucketIndex the bucket index to set
+	 */
+	public void setBucketIndex(int bucketIndex) {
+		this.bucketIndex = bucketIndex;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return "Entity [x=" + x + ", y=" + y + ", radius=" + radius + ", world=" + world + "]";
+		return "Entity [x=" + getX() + ", y=" + getY() + ", radius=" + getRadius() + ", world=" + world + "]";
 	}
 }
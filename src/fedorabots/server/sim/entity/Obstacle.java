@@ -1,25 +1,15 @@
 package fedorabots.server.sim.entity;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import fedorabots.common.Constants;
-import javafx.geometry.Point3D;
 import fedorabots.server.sim.world.World;
 
 public abstract class Obstacle extends PhysicsEntity {
 
     private boolean rotationChanged = false;
-    // For the Point3D, x and y are x and y but z = the radius
-    private static Map<World, Map<Point3D, Entity>> rangeEntities;
-
-    static {
-        rangeEntities = new HashMap<World, Map<Point3D, Entity>>();
-    }
+    private static final Predicate<Entity> IS_ROBOT = entity -> entity instanceof Robot;
 
 	public Obstacle(byte id, double x, double y) {
         super(id, null, x, y, 0, Constants.Obstacle.RADIUS, Double.MAX_VALUE);
@@ -35,70 +25,26 @@ public abstract class Obstacle extends PhysicsEntity {
 		}
     }
 
-    protected Collection<Robot> robotsInRange(double range, World world, boolean cache) {
-        if (rangeEntities.get(world) == null) {
-            rangeEntities.put(world, new HashMap<Point3D, Entity>());
-        }
-        Entity rangeEntity;
-        double radius = range + Constants.Robot.RADIUS;
-        Point3D mapKey = new Point3D(getX(), getY(), radius);
-        if ((rangeEntity = rangeEntities.get(world).get(mapKey)) == null) {
-            rangeEntity = new PhysicsEntity((short) 0, null, getX(), getY(), 0, radius, 0);
-            if (cache) {
-                rangeEntities.get(world).put(mapKey, rangeEntity);
-            }
-        }
-
-        world.add(rangeEntity);
-        Collection<Robot> robots = new ArrayList<Robot>();
-        world.forCollidingUnsafe(rangeEntity, entity -> {
-            if (entity instanceof Robot) {
-                robots.add((Robot) entity);
-            }
-        });
-        world.remove(rangeEntity);
-        return robots;
+    /**
+     * Passes every robot whose center is within <code>range</code> plus twice
+     * the robot radius of the obstacle's center to the consumer. The query
+     * circle is <code>range + Robot.RADIUS</code>, and a robot overlaps it
+     * when its center is within its own radius of the circle.
+     */
+    protected void forRobotsInRange(double range, World world, Consumer<Robot> consumer) {
+        world.queryCircle(getX(), getY(), range + Constants.Robot.RADIUS, IS_ROBOT, entity -> consumer.accept((Robot) entity));
     }
 
     /**
      * Returns the closest robot to the obstacle within a given range. If there
      * is no such robot in the range then returns null.
      *
-     * The distance is measured from the center of the obstacle to the edge of the robot.
+     * Like {@link #forRobotsInRange}, a robot is in range when its center is
+     * within <code>range</code> plus twice the robot radius of the obstacle's
+     * center.
      */
-    protected Robot getClosestRobotInRange(double range, World world, boolean cache) {
-        // Entity closest = world.closest(this, rob -> {
-        //     if (rob instanceof Robot) {
-        //         System.out.println("YAY");
-        //         return true;
-        //     } else {
-        //         return false;
-        //     }
-        // });
-        // world.forEachUnsafe(entity -> {
-        //     if (entity instanceof Robot) {
-        //         System.out.println(entity.getWorld().getClass().getName());
-        //         System.out.println(entity.markedForRemoval());
-        //     }
-        // });
-
-        // if (closest == null) {
-        //     return null;
-        // }
-        // double distance = Math.sqrt(Math.pow(closest.getX() - getX(), 2) + Math.pow(closest.getY() - getY(), 2));
-        // System.out.println(distance - closest.getRadius() + " | " + range);
-        // if (distance - closest.getRadius() <= range) {
-        //     return (Robot) closest;
-        // } else {
-        //     return null;
-        // }
-        try  {
-            return robotsInRange(range, world, cache).stream().min(Comparator.comparingDouble(ent ->
-                Math.sqrt(Math.pow(ent.getX() - getX(), 2) + Math.pow(ent.getY() - getY(), 2))
-            )).get();
-        } catch (NoSuchElementException e) {
-            return null;
-        }
+    protected Robot getClosestRobotInRange(double range, World world) {
+        return (Robot) world.nearest(getX(), getY(), range + Constants.Robot.RADIUS, IS_ROBOT);
     }
 
     @Override
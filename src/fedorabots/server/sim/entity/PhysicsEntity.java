@@ -6,7 +6,7 @@ package fedorabots.server.sim.entity;
 import java.awt.Color;
 
 import fedorabots.common.Constants;
-import fedorabots.server.sim.world.World;
+import fedorabots.server.sim.EntityStore;
 
 /**
  * @author joelmanning
@@ -31,6 +31,46 @@ public class PhysicsEntity extends Entity {
 		this(id, color, x, y, rotation, radius, mass, 0, 0, 0, 0);
 	}
 
+	protected void reset(double x, double y, double rotation, double radius, double mass,
+						 double vx, double vy, double ax, double ay) {
+		super.reset(x, y, rotation, radius);
+		this.mass = mass;
+		this.vx = vx;
+		this.vy = vy;
+		this.ax = ax;
+		this.ay = ay;
+	}
+
+	@Override
+	public void bind(EntityStore store, int slot) {
+		super.bind(store, slot);
+		store.vx[slot] = vx;
+		store.vy[slot] = vy;
+		store.ax[slot] = ax;
+		store.ay[slot] = ay;
+		store.mass[slot] = mass;
+		store.maxSpeed[slot] = getMaxSpeed();
+	}
+
+	@Override
+	public void unbind() {
+		EntityStore store = getStore();
+		int slot = getSlot();
+		vx = store.vx[slot];
+		vy = store.vy[slot];
+		ax = store.ax[slot];
+		ay = store.ay[slot];
+		mass = store.mass[slot];
+		super.unbind();
+	}
+
+	/**
+	 * Returns the largest speed the entity can reach by accelerating.
+	 */
+	public double getMaxSpeed() {
+		return Double.POSITIVE_INFINITY;
+	}
+
 	public boolean collidesWith(PhysicsEntity other) {
 		return true;
 	}
@@ -39,21 +79,23 @@ public class PhysicsEntity extends Entity {
 		// System.out.println("Resolving a collision between");
 		// System.out.println(this);
 		// System.out.println(other);
+		double vx = getVx(), vy = getVy(), mass = getMass();
+		double ovx = other.getVx(), ovy = other.getVy(), omass = other.getMass();
 		double distsq = Math.pow(getX() - other.getX(), 2) + Math.pow(getY() - other.getY(), 2);
-		double dp = (vx - other.vx) * (getX() - other.getX()) + (vy - other.vy) * (getY() - other.getY());
+		double dp = (vx - ovx) * (getX() - other.getX()) + (vy - ovy) * (getY() - other.getY());
 
 		if (dp >= 0)
 			return;
 
 		// System.out.println(dp);
-		double common = 2 * dp / distsq / (mass + other.mass);
+		double common = 2 * dp / distsq / (mass + omass);
 
 		// double oldvx = vx, oldvy = vy;
-		vx -= common * other.mass * (getX() - other.getX());
-		vy -= common * other.mass * (getY() - other.getY());
+		setVelocityUnclamped(vx - common * omass * (getX() - other.getX()),
+							 vy - common * omass * (getY() - other.getY()));
 
-		other.vx -= common * mass * (other.getX() - getX());
-		other.vy -= common * mass * (other.getY() - getY());
+		other.setVelocityUnclamped(ovx - common * mass * (other.getX() - getX()),
+								   ovy - common * mass * (other.getY() - getY()));
 
 		// vx = (vx * (mass - other.mass) + (2 * other.mass * other.vx)) / (mass + other.mass);
 		// vy = (vy * (mass - other.mass) + (2 * other.mass * other.vy)) / (mass + other.mass);
@@ -64,43 +106,58 @@ public class PhysicsEntity extends Entity {
 		// System.out.println(other);
 	}
 
-	@Override
-	public void tick(double length, World world) {
-		setPosition(getX() + vx * length, getY() + vy * length);
-		setVelocity(vx + ax * length, vy + ay * length);
-		world.forCollidingUnsafe(this, (e) -> {
-			if(e instanceof PhysicsEntity && collidesWith((PhysicsEntity) e)) {
-				resolveCollision((PhysicsEntity) e);
-			}
-		});
+	/**
+	 * Resolves a collision between two overlapping entities. This is called
+	 * once for each colliding pair, so the entity doing the resolving is
+	 * responsible for the effects on both sides. Resolving a collision must
+	 * not move either entity, since the broad phase finds every pair before
+	 * the first one is resolved (see
+	 * {@link fedorabots.server.sim.BroadPhase#forEachPairParallel}).
+	 */
+	public static void collide(Entity a, Entity b) {
+		if(a.markedForRemoval() || b.markedForRemoval()
+				|| !(a instanceof PhysicsEntity) || !(b instanceof PhysicsEntity)) {
+			return;
+		}
+		PhysicsEntity pa = (PhysicsEntity) a;
+		PhysicsEntity pb = (PhysicsEntity) b;
+		if(pa.collidesWith(pb)) {
+			pa.resolveCollision(pb);
+		} else if(pb.collidesWith(pa)) {
+			pb.resolveCollision(pa);
+		}
 	}
 
 	/**
 	 * @return the vx
 	 */
 	public double getVx() {
-		return vx;
+		EntityStore store = getStore();
+		return store != null ? store.vx[getSlot()] : vx;
 	}
 
 	/**
 	 * @return the vy
 	 */
 	public double getVy() {
-		return vy;
+		EntityStore store = getStore();
+		return store != null ? store.vy[getSlot()] : vy;
 	}
 
 	/**
 	 * @return the ax
 	 */
 	public double getAx() {
-		return ax;
+		EntityStore store = getStore();
+		return store != null ? store.ax[getSlot()] : ax;
 	}
 
 	/**
 	 * @return the ay
 	 */
 	public double getAy() {
-		return ay;
+		EntityStore store = getStore();
+		return store != null ? store.ay[getSlot()] : ay;
 	}
 
 	/**
@@ -108,24 +165,25 @@ public class PhysicsEntity extends Entity {
 	 * @param vy the vy to set
 	 */
 	protected void setVelocity(double vx, double vy) {
-		setVx(vx);
-		setVy(vy);
-	}
-
-	/**
-	 * @param vx
-	 *            the vx to set
-	 */
-	private void setVx(double vx) {
-		this.vx = vx;
+		double v = Math.sqrt(vx * vx + vy * vy);
+		double max = getMaxSpeed();
+		if (v > max) {
+			double angle = Math.atan2(vy, vx);
+			setVelocityUnclamped(max * Math.cos(angle), max * Math.sin(angle));
+		} else {
+			setVelocityUnclamped(vx, vy);
+		}
 	}
 
-	/**
-	 * @param vy
-	 *            the vy to set
-	 */
-	private void setVy(double vy) {
-		this.vy = vy;
+	private void setVelocityUnclamped(double vx, double vy) {
+		EntityStore store = getStore();
+		if (store != null) {
+			store.vx[getSlot()] = vx;
+			store.vy[getSlot()] = vy;
+		} else {
+			this.vx = vx;
+			this.vy = vy;
+		}
 	}
 
 	/**
@@ -150,7 +208,12 @@ public class PhysicsEntity extends Entity {
 	 *            the ax to set
 	 */
 	private void setAx(double ax) {
-		this.ax = ax;
+		EntityStore store = getStore();
+		if (store != null) {
+			store.ax[getSlot()] = ax;
+		} else {
+			this.ax = ax;
+		}
 	}
 
 	/**
@@ -158,21 +221,32 @@ public class PhysicsEntity extends Entity {
 	 *            the ay to set
 	 */
 	private void setAy(double ay) {
-		this.ay = ay;
+		EntityStore store = getStore();
+		if (store != null) {
+			store.ay[getSlot()] = ay;
+		} else {
+			this.ay = ay;
+		}
 	}
 
 	/**
 	 * @return the mass
 	 */
 	public double getMass() {
-		return mass;
+		EntityStore store = getStore();
+		return store != null ? store.mass[getSlot()] : mass;
 	}
 
 	/**
 	 * @param mass the mass to set
 	 */
 	public void setMass(double mass) {
-		this.mass = mass;
+		EntityStore store = getStore();
+		if (store != null) {
+			store.mass[getSlot()] = mass;
+		} else {
+			this.mass = mass;
+		}
 	}
 
 	/* (non-Javadoc)
@@ -187,15 +261,15 @@ public class PhysicsEntity extends Entity {
 		if(getClass() != obj.getClass())
 			return false;
 		PhysicsEntity other = (PhysicsEntity) obj;
-		if(Double.doubleToLongBits(ax) != Double.doubleToLongBits(other.ax))
+		if(Double.doubleToLongBits(getAx()) != Double.doubleToLongBits(other.getAx()))
 			return false;
-		if(Double.doubleToLongBits(ay) != Double.doubleToLongBits(other.ay))
+		if(Double.doubleToLongBits(getAy()) != Double.doubleToLongBits(other.getAy()))
 			return false;
-		if(Double.doubleToLongBits(mass) != Double.doubleToLongBits(other.mass))
+		if(Double.doubleToLongBits(getMass()) != Double.doubleToLongBits(other.getMass()))
 			return false;
-		if(Double.doubleToLongBits(vx) != Double.doubleToLongBits(other.vx))
+		if(Double.doubleToLongBits(getVx()) != Double.doubleToLongBits(other.getVx()))
 			return false;
-		if(Double.doubleToLongBits(vy) != Double.doubleToLongBits(other.vy))
+		if(Double.doubleToLongBits(getVy()) != Double.doubleToLongBits(other.getVy()))
 			return false;
 		return true;
 	}
@@ -205,7 +279,7 @@ public class PhysicsEntity extends Entity {
 	 */
 	@Override
 	public String toString() {
-		return "PhysicsEntity [vx=" + vx + ", vy=" + vy + ", ax=" + ax + ", ay=" + ay + ", mass=" + mass
+		return "PhysicsEntity [vx=" + getVx() + ", vy=" + getVy() + ", ax=" + getAx() + ", ay=" + getAy() + ", mass=" + getMass()
 				+ ", toString()=" + super.toString() + "]";
 	}
 }
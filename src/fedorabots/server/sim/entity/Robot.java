@@ -59,19 +59,9 @@ public class Robot extends PhysicsEntity {
 	}
 
 
-	/**
-	 * @param vx the vx to set
-	 * @param vy the vy to set
-	 */
-	protected void setVelocity(double vx, double vy) {
-		double v = Math.sqrt(vx * vx + vy * vy);
-		if (v > Constants.Robot.MAX_VELOCITY/1e3) {
-			double angle = Math.atan2(vy, vx);
-			super.setVelocity(Constants.Robot.MAX_VELOCITY/1e3 * Math.cos(angle),
-							  Constants.Robot.MAX_VELOCITY/1e3 * Math.sin(angle));
-		} else {
-			super.setVelocity(vx, vy);
-		}
+	@Override
+	public double getMaxSpeed() {
+		return Constants.Robot.MAX_VELOCITY/1e3;
 	}
 
 	@Override
@@ -80,7 +70,7 @@ public class Robot extends PhysicsEntity {
 		if (other instanceof Bullet) {
 			setHealth(health - Constants.Bullet.DAMAGE);
 			addDamageAngle(new Point2D(other.getVx(), other.getVy()));
-			other.markedForRemoval();
+			other.markForRemoval();
 		}
 	}
 
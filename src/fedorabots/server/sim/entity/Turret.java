@@ -36,7 +36,7 @@ public class Turret extends Obstacle {
      * there is a robot to shoot at.
      */
     private boolean aim(World world) {
-        Robot robot = getClosestRobotInRange(Constants.Obstacle.TURRET_RANGE, world, true);
+        Robot robot = getClosestRobotInRange(Constants.Obstacle.TURRET_RANGE, world);
         if (robot == null) {
             return false;
         }
@@ -53,7 +53,7 @@ public class Turret extends Obstacle {
         double dist = (Constants.Obstacle.RADIUS + Constants.Bullet.RADIUS) * 1.3;
         double x = getX() + dist * Math.cos(rotation);
         double y = getY() - dist * Math.sin(rotation);
-        world.add(new Bullet(x, y, Constants.Bullet.RADIUS, Constants.Bullet.MASS, vx, vy));
+        world.add(world.getBulletPool().acquire(x, y, Constants.Bullet.RADIUS, Constants.Bullet.MASS, vx, vy));
     }
 
 }
@@ -46,7 +46,7 @@ public class Vaporizer extends Obstacle {
             totalTime %= Constants.Obstacle.VAPORIZER_PULSE_FREQUENCY;
         } else if (totalTime > PULSE_START_TIME) {
             if (mode == Mode.CHARGING) {
-                if (getClosestRobotInRange(Constants.Obstacle.VAPORIZER_RANGE, world, true) == null) {
+                if (getClosestRobotInRange(Constants.Obstacle.VAPORIZER_RANGE, world) == null) {
                     mode = Mode.NOTARGET;
                 } else {
                     mode = Mode.PULSING;
@@ -57,7 +57,7 @@ public class Vaporizer extends Obstacle {
                 setRotation(pulsePercent * 2 * Math.PI);
                 double pulseRadius = getRadius() + pulsePercent * (Constants.Obstacle.VAPORIZER_RANGE - getRadius());
 
-                robotsInRange(pulseRadius, world, false).forEach(this::handlePulse);
+                forRobotsInRange(pulseRadius, world, this::handlePulse);
             }
         }
     }
@@ -105,12 +105,12 @@ public class BasicWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#add(sim.Entity)
+	 * @see sim.World#insert(sim.Entity)
 	 */
 	@Override
-	public void add(Entity entity) {
+	protected void insert(Entity entity) {
 		if(!fullyContains(entity)) {
-			getParent().add(entity);
+			getParent().insert(entity);
 		} else {
 			things.add(entity);
 			entity.setWorld(this);
@@ -120,10 +120,10 @@ public class BasicWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#remove(sim.Entity)
+	 * @see sim.World#delete(sim.Entity)
 	 */
 	@Override
-	public void remove(Entity entity) {
+	protected void delete(Entity entity) {
 		things.remove(entity);
 	}
 
@@ -0,0 +1,216 @@
+package fedorabots.server.sim.world;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import fedorabots.common.Constants;
+import fedorabots.server.sim.entity.Entity;
+
+/**
+ * A world that buckets entities into a uniform grid of square cells, indexed
+ * by the cell that contains the entity's center.
+ *
+ * Unlike the split world tree, moving an entity only touches the cells it
+ * leaves and enters, and collision queries only look at the cells surrounding
+ * the source. Entities with a radius larger than half a cell are kept in a
+ * separate list that is checked on every query.
+ */
+public class GridWorld extends World {
+
+	/**
+	 * The default cell size, which is twice the largest collision radius so
+	 * that every regular entity fits in one cell.
+	 */
+	public static final double DEFAULT_CELL_SIZE = 2 * Math.max(Constants.Robot.RADIUS,
+			Math.max(Constants.Obstacle.RADIUS, Constants.Bullet.RADIUS));
+
+	private final double cellSize;
+	private final int cols, rows;
+	private final List<List<Entity>> cells;
+	private final List<Entity> large;
+
+	public GridWorld(double x, double y, double width, double height, double cellSize, World parent) {
+		super(x, y, width, height, parent);
+		this.cellSize = cellSize;
+		cols = Math.max(1, (int) Math.ceil(width / cellSize));
+		rows = Math.max(1, (int) Math.ceil(height / cellSize));
+		cells = new ArrayList<List<Entity>>(cols * rows);
+		for(int i = 0; i < cols * rows; i++) {
+			cells.add(new ArrayList<Entity>(4));
+		}
+		large = new ArrayList<Entity>();
+	}
+
+	public GridWorld(double x, double y, double width, double height, World parent) {
+		this(x, y, width, height, DEFAULT_CELL_SIZE, parent);
+	}
+
+	/**
+	 * @return the side length of a cell
+	 */
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	private int column(double x) {
+		return Math.min(cols - 1, Math.max(0, (int) ((x - getX()) / cellSize)));
+	}
+
+	private int row(double y) {
+		return Math.min(rows - 1, Math.max(0, (int) ((y - getY()) / cellSize)));
+	}
+
+	private boolean isLarge(Entity entity) {
+		return entity.getRadius() * 2 > cellSize;
+	}
+
+	private List<Entity> cellOf(double x, double y) {
+		return cells.get(row(y) * cols + column(x));
+	}
+
+	private static boolean removeIdentity(List<Entity> list, Entity entity) {
+		for(int i = 0; i < list.size(); i++) {
+			if(list.get(i) == entity) {
+				int last = list.size() - 1;
+				list.set(i, list.get(last));
+				list.remove(last);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean colliding(Entity source, Entity e) {
+		double dx = source.getX() - e.getX();
+		double dy = source.getY() - e.getY();
+		double r = source.getRadius() + e.getRadius();
+		return dx * dx + dy * dy <= r * r;
+	}
+
+	@Override
+	protected void insert(Entity entity) {
+		if(!fullyContains(entity)) {
+			getParent().insert(entity);
+		} else {
+			if(isLarge(entity)) {
+				large.add(entity);
+			} else {
+				cellOf(entity.getX(), entity.getY()).add(entity);
+			}
+			entity.setWorld(this);
+		}
+	}
+
+	@Override
+	protected void delete(Entity entity) {
+		if(isLarge(entity)) {
+			removeIdentity(large, entity);
+		} else if(!removeIdentity(cellOf(entity.getX(), entity.getY()), entity)) {
+			// The entity was moved without telling the grid (for instance by
+			// setPositionUnsafe), so fall back to looking through every cell.
+			for(List<Entity> cell : cells) {
+				if(removeIdentity(cell, entity)) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void move(Entity entity, double x, double y) {
+		if(!isLarge(entity) && x - entity.getRadius() > getX() && x + entity.getRadius() < getX() + getWidth()
+				&& y - entity.getRadius() > getY() && y + entity.getRadius() < getY() + getHeight()
+				&& column(x) == column(entity.getX()) && row(y) == row(entity.getY())) {
+			entity.setPositionUnsafe(x, y);
+		} else {
+			super.move(entity, x, y);
+		}
+	}
+
+	@Override
+	public void forEachUnsafe(Consumer<Entity> consumer) {
+		for(Entity e : large) {
+			if(!e.markedForRemoval()) {
+				consumer.accept(e);
+			}
+		}
+		for(List<Entity> cell : cells) {
+			for(Entity e : cell) {
+				if(!e.markedForRemoval()) {
+					consumer.accept(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void forCollidingUnsafe(Entity source, Consumer<Entity> consumer) {
+		for(Entity e : large) {
+			if(!e.markedForRemoval() && source != e && colliding(source, e)) {
+				consumer.accept(e);
+			}
+		}
+		// Every entity in a cell has a radius of at most half a cell
+		double reach = source.getRadius() + cellSize / 2;
+		int c0 = column(source.getX() - reach), c1 = column(source.getX() + reach);
+		int r0 = row(source.getY() - reach), r1 = row(source.getY() + reach);
+		for(int r = r0; r <= r1; r++) {
+			for(int c = c0; c <= c1; c++) {
+				for(Entity e : cells.get(r * cols + c)) {
+					if(!e.markedForRemoval() && source != e && colliding(source, e)) {
+						consumer.accept(e);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void forCollidingUnsafe(double x, double y, double width, double height, Consumer<Entity> consumer) {
+		for(Entity e : large) {
+			if(!e.markedForRemoval() && World.intersects(e, x, y, width, height)) {
+				consumer.accept(e);
+			}
+		}
+		double reach = cellSize / 2;
+		int c0 = column(x - reach), c1 = column(x + width + reach);
+		int r0 = row(y - reach), r1 = row(y + height + reach);
+		for(int r = r0; r <= r1; r++) {
+			for(int c = c0; c <= c1; c++) {
+				for(Entity e : cells.get(r * cols + c)) {
+					if(!e.markedForRemoval() && World.intersects(e, x, y, width, height)) {
+						consumer.accept(e);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public Entity closest(Entity source) {
+		return closest(source, e -> true);
+	}
+
+	@Override
+	public Entity closest(Entity source, Predicate<Entity> condition) {
+		Entity[] closest = new Entity[1];
+		double[] dmin = { Double.MAX_VALUE };
+		forEachUnsafe(e -> {
+			if(source != e && condition.test(e)) {
+				double d = Math.pow(source.getX() - e.getX(), 2) + Math.pow(source.getY() - e.getY(), 2);
+				if(d < dmin[0]) {
+					dmin[0] = d;
+					closest[0] = e;
+				}
+			}
+		});
+		return closest[0];
+	}
+
+	@Override
+	public World emptyClone() {
+		return new GridWorld(getX(), getY(), getWidth(), getHeight(), cellSize, getParent());
+	}
+}
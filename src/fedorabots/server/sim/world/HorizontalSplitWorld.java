@@ -152,16 +152,16 @@ public class HorizontalSplitWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#add(sim.Entity)
+	 * @see sim.World#insert(sim.Entity)
 	 */
 	@Override
-	public void add(Entity entity) {
+	protected void insert(Entity entity) {
 		if(!fullyContains(entity)) {
-			getParent().add(entity);
+			getParent().insert(entity);
 		} else if(entity.getY() + entity.getRadius() < getY() + getHeight() / 2) {
-			top.add(entity);
+			top.insert(entity);
 		} else if(entity.getY() - entity.getRadius() > getY() + getHeight() / 2) {
-			bottom.add(entity);
+			bottom.insert(entity);
 		} else {
 			things.add(entity);
 			entity.setWorld(this);
@@ -171,13 +171,13 @@ public class HorizontalSplitWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#remove(sim.Entity)
+	 * @see sim.World#delete(sim.Entity)
 	 */
 	@Override
-	public void remove(Entity entity) {
+	protected void delete(Entity entity) {
 		if(!things.remove(entity)) {
-			top.remove(entity);
-			bottom.remove(entity);
+			top.delete(entity);
+			bottom.delete(entity);
 		}
 	}
 
@@ -104,12 +104,12 @@ public class InfiniteWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#add(sim.Entity)
+	 * @see sim.World#insert(sim.Entity)
 	 */
 	@Override
-	public void add(Entity entity) {
+	protected void insert(Entity entity) {
 		if(child.fullyContains(entity)) {
-			child.add(entity);
+			child.insert(entity);
 		} else {
 			things.add(entity);
 			entity.setWorld(this);
@@ -119,12 +119,12 @@ public class InfiniteWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#remove(sim.Entity)
+	 * @see sim.World#delete(sim.Entity)
 	 */
 	@Override
-	public void remove(Entity entity) {
+	protected void delete(Entity entity) {
 		if(!things.remove(entity))
-			child.remove(entity);
+			child.delete(entity);
 	}
 
 	@Override
@@ -161,6 +161,9 @@ public class InfiniteWorld extends World {
 
 	@Override
 	public World emptyClone() {
-		return new InfiniteWorld(child.emptyClone());
+		World c = child.emptyClone();
+		World w = new InfiniteWorld(c);
+		c.setParent(w);
+		return w;
 	}
 }
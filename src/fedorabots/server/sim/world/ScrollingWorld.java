@@ -19,14 +19,14 @@ public class ScrollingWorld extends World {
 	}
 
 	@Override
-	public void add(Entity entity) {
+	protected void insert(Entity entity) {
 		// The statement below assumes the child will never be added more than 1 full scroll away.
 		// If this assumption is false, there will need to be another mod.
 		entity.setPositionUnsafe((entity.getX() - this.getX() + this.getWidth()) % this.getWidth() + this.getX(),
 									(entity.getY() - this.getY() + this.getHeight()) % this.getHeight() + this.getY());
 
 		if(child.fullyContains(entity)) {
-			child.add(entity);
+			child.insert(entity);
 		} else {
 			things.add(entity);
 			entity.setWorld(this);
@@ -113,12 +113,12 @@ public class ScrollingWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#remove(sim.Entity)
+	 * @see sim.World#delete(sim.Entity)
 	 */
 	@Override
-	public void remove(Entity entity) {
+	protected void delete(Entity entity) {
 		if(!things.remove(entity))
-			child.remove(entity);
+			child.delete(entity);
 	}
 
 	@Override
@@ -155,7 +155,10 @@ public class ScrollingWorld extends World {
 
 	@Override
 	public World emptyClone() {
-		return new ScrollingWorld(getX(), getY(), getWidth(), getHeight(), child.emptyClone());
+		World c = child.emptyClone();
+		World w = new ScrollingWorld(getX(), getY(), getWidth(), getHeight(), c);
+		c.setParent(w);
+		return w;
 	}
 
 }
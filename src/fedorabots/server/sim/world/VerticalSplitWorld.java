@@ -150,16 +150,16 @@ public class VerticalSplitWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#add(sim.Entity)
+	 * @see sim.World#insert(sim.Entity)
 	 */
 	@Override
-	public void add(Entity entity) {
+	protected void insert(Entity entity) {
 		if(!fullyContains(entity)) {
-			getParent().add(entity);
+			getParent().insert(entity);
 		} else if(entity.getX() + entity.getRadius() < getX() + getWidth() / 2) {
-			left.add(entity);
+			left.insert(entity);
 		} else if(entity.getX() - entity.getRadius() > getX() + getWidth() / 2) {
-			right.add(entity);
+			right.insert(entity);
 		} else {
 			things.add(entity);
 			entity.setWorld(this);
@@ -169,13 +169,13 @@ public class VerticalSplitWorld extends World {
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see sim.World#remove(sim.Entity)
+	 * @see sim.World#delete(sim.Entity)
 	 */
 	@Override
-	public void remove(Entity entity) {
+	protected void delete(Entity entity) {
 		if(!things.remove(entity)) {
-			left.remove(entity);
-			right.remove(entity);
+			left.delete(entity);
+			right.delete(entity);
 		}
 	}
 
@@ -4,18 +4,22 @@
 package fedorabots.server.sim.world;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import fedorabots.common.Constants;
-import fedorabots.common.Profiler;
+import fedorabots.server.metrics.Histogram;
+import fedorabots.server.metrics.Metrics;
+import fedorabots.server.sim.BulletPool;
 import javafx.geometry.Point2D;
 import fedorabots.server.sim.entity.Bullet;
 import fedorabots.server.sim.entity.Entity;
@@ -30,18 +34,26 @@ public abstract class World {
 
 	private double x, y, width, height;
 	private World parent;
-	private Stack<Entity> toRemove;
+	// Only created once something in this part of the world is removed
+	private ArrayDeque<Entity> toRemove;
+	private BulletPool bulletPool;
+	private Buckets buckets;
+	private List<Scratch> scratches;
+	private int scratchDepth;
 
 	public static final int MIN_WIDTH = 40;
 	public static final int MIN_HEIGHT = 40;
 
+	private static final Histogram WRITE_STATE_TIME = Metrics.timer("state.writeRobotsTime");
+	private static final Histogram VELOCITY_STATES_TIME = Metrics.timer("state.velocitiesTime");
+	private static final Histogram WRITE_BULLETS_TIME = Metrics.timer("state.writeBulletsTime");
+
 	protected World(double x, double y, double width, double height, World parent) {
 		this.x = x;
 		this.y = y;
 		this.width = width;
 		this.height = height;
 		this.parent = parent;
-		toRemove = new Stack<Entity>();
 	}
 
 	public static World generateInfiniteWorld(double x, double y, double width, double height) {
@@ -56,6 +68,24 @@ public abstract class World {
 		return w.getParent();
 	}
 
+	public static World generateScrollingGridWorld(double x, double y, double width, double height) {
+		World w = new GridWorld(x, y, width, height, null);
+		w.setParent(new ScrollingWorld(x, y, width, height, w));
+		return w.getParent();
+	}
+
+	/**
+	 * Generates the world a game room is played in. This is a scrolling world
+	 * backed by a {@link GridWorld} if the <code>fedorabots.gridWorld</code>
+	 * system property is set to true, and by the split world tree otherwise.
+	 */
+	public static World generateRoomWorld(double x, double y, double width, double height) {
+		if(Boolean.getBoolean("fedorabots.gridWorld")) {
+			return generateScrollingGridWorld(x, y, width, height);
+		}
+		return generateScrollingWorld(x, y, width, height);
+	}
+
 	public static World generateWorld(double x, double y, double width, double height, World parent) {
 		if(width > height) {
 			if(width < MIN_WIDTH * 2) {
@@ -87,13 +117,38 @@ public abstract class World {
 		this.parent = parent;
 	}
 
+	/**
+	 * Returns the world at the top of the tree this world is part of.
+	 */
+	public World getRoot() {
+		World root = this;
+		while(root.parent != null) {
+			root = root.parent;
+		}
+		return root;
+	}
+
+	/**
+	 * Returns the pool that bullets in this world are taken from and returned
+	 * to. Every part of a world tree shares the pool of its root.
+	 */
+	public BulletPool getBulletPool() {
+		World root = getRoot();
+		if(root.bulletPool == null) {
+			root.bulletPool = new BulletPool();
+		}
+		return root.bulletPool;
+	}
+
 	public abstract void forEachUnsafe(Consumer<Entity> consumer);
 
 	public void forEach(Consumer<Entity> consumer){
-		List<Entity> safeIterable = new ArrayList<Entity>();
-		forEachUnsafe(e -> safeIterable.add(e));
-		for(Entity e: safeIterable){
-			consumer.accept(e);
+		Scratch safeIterable = acquireScratch(null);
+		try {
+			forEachUnsafe(safeIterable);
+			safeIterable.forEachIndexed(consumer);
+		} finally {
+			releaseScratch(safeIterable);
 		}
 	}
 
@@ -106,30 +161,208 @@ public abstract class World {
 	}
 
 	public void forCondition(Predicate<Entity> condition, Consumer<Entity> consumer){
-		List<Entity> safeIterable = new ArrayList<Entity>();
-		forConditionUnsafe(condition, e -> safeIterable.add(e));
-		for(Entity e: safeIterable){
-			consumer.accept(e);
+		Scratch safeIterable = acquireScratch(condition);
+		try {
+			forEachUnsafe(safeIterable);
+			safeIterable.forEachIndexed(consumer);
+		} finally {
+			releaseScratch(safeIterable);
 		}
 	}
 
 	public abstract void forCollidingUnsafe(Entity source, Consumer<Entity> consumer);
 
 	public void forColliding(Entity source, Consumer<Entity> consumer){
-		List<Entity> safeIterable = new ArrayList<Entity>();
-		forCollidingUnsafe(source, e -> safeIterable.add(e));
-		for(Entity e: safeIterable){
-			consumer.accept(e);
+		Scratch safeIterable = acquireScratch(null);
+		try {
+			forCollidingUnsafe(source, safeIterable);
+			safeIterable.forEachIndexed(consumer);
+		} finally {
+			releaseScratch(safeIterable);
 		}
 	}
 
 	public abstract void forCollidingUnsafe(double x, double y, double width, double height, Consumer<Entity> consumer);
 
 	public void forColliding(double x, double y, double width, double height, Consumer<Entity> consumer){
-		List<Entity> safeIterable = new ArrayList<Entity>();
-		forCollidingUnsafe(x, y, width, height, e -> safeIterable.add(e));
-		for(Entity e: safeIterable){
-			consumer.accept(e);
+		Scratch safeIterable = acquireScratch(null);
+		try {
+			forCollidingUnsafe(x, y, width, height, safeIterable);
+			safeIterable.forEachIndexed(consumer);
+		} finally {
+			releaseScratch(safeIterable);
+		}
+	}
+
+	/**
+	 * The robots, bullets and obstacles in a world tree, kept up to date as
+	 * entities are added and removed so that they never have to be searched
+	 * for. Only the root of a tree has buckets.
+	 */
+	private static class Buckets {
+		private final Bucket<Robot> robots = new Bucket<Robot>();
+		private final Bucket<Bullet> bullets = new Bucket<Bullet>();
+		private final Bucket<Obstacle> obstacles = new Bucket<Obstacle>();
+
+		private void add(Entity entity) {
+			if(entity instanceof Robot) {
+				robots.add((Robot) entity);
+			} else if(entity instanceof Bullet) {
+				bullets.add((Bullet) entity);
+			} else if(entity instanceof Obstacle) {
+				obstacles.add((Obstacle) entity);
+			}
+		}
+
+		private void remove(Entity entity) {
+			if(entity instanceof Robot) {
+				robots.remove(entity);
+			} else if(entity instanceof Bullet) {
+				bullets.remove(entity);
+			} else if(entity instanceof Obstacle) {
+				obstacles.remove(entity);
+			}
+		}
+	}
+
+	/**
+	 * The entities of one type in a world tree. Each entity knows its index in
+	 * the list, so it can be removed by moving the last entity into its place.
+	 */
+	private static class Bucket<T extends Entity> {
+		private final List<T> entities = new ArrayList<T>();
+		private final List<T> view = Collections.unmodifiableList(entities);
+
+		private void add(T entity) {
+			if(entity.getBucketIndex() == -1) {
+				entity.setBucketIndex(entities.size());
+				entities.add(entity);
+			}
+		}
+
+		private void remove(Entity entity) {
+			int index = entity.getBucketIndex();
+			if(index == -1 || index >= entities.size() || entities.get(index) != entity) {
+				return;
+			}
+			T last = entities.remove(entities.size() - 1);
+			if(last != entity) {
+				entities.set(index, last);
+				last.setBucketIndex(index);
+			}
+			entity.setBucketIndex(-1);
+		}
+	}
+
+	/**
+	 * A reusable snapshot of entities for the safe iteration methods. It
+	 * collects the entities passed to it that match its condition.
+	 */
+	private static class Scratch extends ArrayList<Entity> implements Consumer<Entity> {
+		private static final long serialVersionUID = 2851391867227426718L;
+
+		private Predicate<Entity> condition;
+
+		@Override
+		public void accept(Entity e) {
+			if(condition == null || condition.test(e)) {
+				add(e);
+			}
+		}
+
+		private void forEachIndexed(Consumer<Entity> consumer) {
+			for(int i = 0; i < size(); i++) {
+				consumer.accept(get(i));
+			}
+		}
+	}
+
+	/**
+	 * Returns a cleared snapshot buffer. Safe iterations can be nested (for
+	 * instance a collision query inside a forEach), so the buffers form a
+	 * stack and each nesting level reuses its own buffer. Like the rest of the
+	 * world this is not thread safe, so callers must synchronize on the world.
+	 */
+	private Scratch acquireScratch(Predicate<Entity> condition) {
+		if(scratches == null) {
+			scratches = new ArrayList<Scratch>(2);
+		}
+		if(scratchDepth == scratches.size()) {
+			scratches.add(new Scratch());
+		}
+		Scratch scratch = scratches.get(scratchDepth++);
+		scratch.condition = condition;
+		return scratch;
+	}
+
+	private void releaseScratch(Scratch scratch) {
+		scratch.clear();
+		scratch.condition = null;
+		scratchDepth--;
+	}
+
+	/**
+	 * Passes every entity that overlaps the circle and matches the filter (if
+	 * there is one) to the consumer. Like the other unsafe iterations, the
+	 * consumer must not add or remove entities.
+	 */
+	public void queryCircle(double x, double y, double radius, Predicate<Entity> filter, Consumer<Entity> consumer) {
+		forCollidingUnsafe(x - radius, y - radius, 2 * radius, 2 * radius, (e) -> {
+			double dx = e.getX() - x, dy = e.getY() - y;
+			double reach = radius + e.getRadius();
+			if(dx * dx + dy * dy <= reach * reach && (filter == null || filter.test(e))) {
+				consumer.accept(e);
+			}
+		});
+	}
+
+	/**
+	 * Replaces the contents of the list with the (at most) k entities that
+	 * overlap the circle and match the filter whose centers are closest to its
+	 * center, closest first.
+	 */
+	public void kNearest(double x, double y, double radius, int k, Predicate<Entity> filter, List<Entity> out) {
+		out.clear();
+		if(k == 1) {
+			Entity nearest = nearest(x, y, radius, filter);
+			if(nearest != null) {
+				out.add(nearest);
+			}
+			return;
+		}
+		queryCircle(x, y, radius, filter, out::add);
+		if(out.size() > 1) {
+			out.sort(Comparator.comparingDouble((Entity e) -> Math.pow(e.getX() - x, 2) + Math.pow(e.getY() - y, 2)));
+		}
+		while(out.size() > k) {
+			out.remove(out.size() - 1);
+		}
+	}
+
+	/**
+	 * Returns the entity that overlaps the circle and matches the filter whose
+	 * center is closest to its center, or null if there is none. Unlike
+	 * {@link #kNearest}, this keeps a running minimum and creates no objects.
+	 */
+	public Entity nearest(double x, double y, double radius, Predicate<Entity> filter) {
+		Scratch candidates = acquireScratch(filter);
+		try {
+			forCollidingUnsafe(x - radius, y - radius, 2 * radius, 2 * radius, candidates);
+			Entity nearest = null;
+			double nearestSq = 0;
+			for(int i = 0; i < candidates.size(); i++) {
+				Entity e = candidates.get(i);
+				double dx = e.getX() - x, dy = e.getY() - y;
+				double distanceSq = dx * dx + dy * dy;
+				double reach = radius + e.getRadius();
+				if(distanceSq <= reach * reach && (nearest == null || distanceSq < nearestSq)) {
+					nearest = e;
+					nearestSq = distanceSq;
+				}
+			}
+			return nearest;
+		} finally {
+			releaseScratch(candidates);
 		}
 	}
 
@@ -142,7 +375,20 @@ public abstract class World {
 				&& entity.getY() - entity.getRadius() > y && entity.getY() + entity.getRadius() < y + height;
 	}
 
-	public abstract void add(Entity entity);
+	/**
+	 * Adds the entity to the world tree, in the smallest part of it that fully
+	 * contains the entity.
+	 */
+	public final void add(Entity entity) {
+		buckets().add(entity);
+		insert(entity);
+	}
+
+	/**
+	 * Puts the entity in this part of the world tree, or passes it on to the
+	 * part that should hold it.
+	 */
+	protected abstract void insert(Entity entity);
 
 	/**
 	 * @return the x
@@ -204,13 +450,42 @@ public abstract class World {
 		this.height = height;
 	}
 
-	public abstract void remove(Entity entity);
+	/**
+	 * Removes the entity from the world tree.
+	 */
+	public final void remove(Entity entity) {
+		buckets().remove(entity);
+		delete(entity);
+	}
+
+	/**
+	 * Takes the entity out of this part of the world tree or the part below it
+	 * that holds it.
+	 */
+	protected abstract void delete(Entity entity);
+
+	/**
+	 * Moves an entity that is in this world to a new position, handling jumps
+	 * between sub-worlds. Worlds that can move an entity in place should
+	 * override this.
+	 */
+	public void move(Entity entity, double x, double y) {
+		delete(entity);
+		entity.setPositionUnsafe(x, y);
+		insert(entity);
+	}
 
 	public void markForRemoval(Entity entity) {
-		toRemove.add(entity);
+		if(toRemove == null) {
+			toRemove = new ArrayDeque<Entity>();
+		}
+		toRemove.push(entity);
 	}
 
 	public void removeMarked() {
+		if(toRemove == null) {
+			return;
+		}
 		while (!toRemove.isEmpty()) {
 			remove(toRemove.pop());
 		}
@@ -252,21 +527,34 @@ public abstract class World {
 		buf.put((byte) ((int) y & 0xFF));
 	}
 
+	/**
+	 * Packs the robot's position, rotation, velocity angle and acceleration
+	 * angle into the low 48 bits of a long, laid out the same way as in state
+	 * messages: 12 bits each for x and y followed by a byte for each angle.
+	 */
+	public static long packRobot(Robot robot) {
+		long x = (int) robot.getRenderX() & 0xFFF;
+		long y = (int) robot.getRenderY() & 0xFFF;
+		long rot = (byte) (robot.getRotation() / 2 / Math.PI * 255) & 0xFF;
+		long vAngle = (byte) ((Math.atan2(robot.getVy(), robot.getVx()) + Math.PI / 2) / 2 / Math.PI * 255) & 0xFF;
+		long aAngle = (byte) ((Math.atan2(robot.getAy(), robot.getAx()) + Math.PI / 2) / 2 / Math.PI * 255) & 0xFF;
+		return x << 36 | y << 24 | rot << 16 | vAngle << 8 | aAngle;
+	}
+
 	private void writeState(ByteBuffer buf, int offset, Collection<Robot> robots) {
-		Profiler.time("Compute state");;
+		long start = WRITE_STATE_TIME.start();
 
 		for (Robot entity : robots) {
 			// System.out.print(entity.getX() + " " + entity.getY() + "        ");
 			buf.put((byte) (entity.getId() >> 8));
 			buf.put((byte) (entity.getId() & 0xFF));
-			writePosition(buf, entity.getX(), entity.getY());
-			buf.put((byte) (entity.getRotation() / 2 / Math.PI * 255));
-			Robot pe = (Robot) entity;
-			buf.put((byte) ((Math.atan2(pe.getVy(), pe.getVx()) + Math.PI / 2) / 2 / Math.PI * 255));
-			buf.put((byte) ((Math.atan2(pe.getAy(), pe.getAx()) + Math.PI / 2) / 2 / Math.PI * 255));
+			long packed = packRobot(entity);
+			for (int shift = 40; shift >= 0; shift -= 8) {
+				buf.put((byte) (packed >> shift));
+			}
 			buf.position(buf.position() - 8 + offset);
 		}
-		Profiler.timeEnd("Compute state");
+		WRITE_STATE_TIME.stop(start);
 		// System.out.println();
 	}
 
@@ -298,7 +586,7 @@ public abstract class World {
 	}
 
 	public Map<Short, byte[]> velocityStates(Collection<Robot> robots) {
-		Profiler.time("Compute vel states");
+		long start = VELOCITY_STATES_TIME.start();
 		Map<Short, byte[]> m = new HashMap<Short, byte[]>();
 		for (Robot entity : robots) {
 			Robot pe = (Robot) entity;
@@ -307,36 +595,50 @@ public abstract class World {
 			bb.putFloat((float) (pe.getVy()*1e3));
 			m.put(entity.getId(), bb.array());
 		}
-		Profiler.timeEnd("Compute vel states");
+		VELOCITY_STATES_TIME.stop(start);
 		return m;
 	}
 
-	private <T> Collection<T> getEntitiesOfClass(Class<T> cl) {
-		Collection<T> entities = new ArrayList<T>();
-		forEachUnsafe(entity -> {
-			if (cl.isInstance(entity)) {
-				entities.add(cl.cast(entity));
-			}
-		});
-		return entities;
+	private Buckets buckets() {
+		World root = getRoot();
+		if(root.buckets == null) {
+			root.buckets = new Buckets();
+		}
+		return root.buckets;
+	}
+
+	/**
+	 * Returns a read only view of the robots in the world tree, which changes
+	 * as robots are added and removed.
+	 */
+	public Collection<Robot> getRobots() {
+		return buckets().robots.view;
 	}
 
+	/**
+	 * Returns a read only view of the bullets in the world tree, which changes
+	 * as bullets are added and removed.
+	 */
 	public Collection<Bullet> getBullets() {
-		return getEntitiesOfClass(Bullet.class);
+		return buckets().bullets.view;
 	}
 
+	/**
+	 * Returns a read only view of the obstacles in the world tree, which
+	 * changes as obstacles are added and removed.
+	 */
 	public Collection<Obstacle> getObstacles() {
-		return getEntitiesOfClass(Obstacle.class);
+		return buckets().obstacles.view;
 	}
 
 	public void writeBulletStates(ByteBuffer buf, Collection<Bullet> bullets) {
-		Profiler.time("Compute bul states");
+		long start = WRITE_BULLETS_TIME.start();
 
 		for (Bullet bullet : bullets) {
-			writePosition(buf, bullet.getX(), bullet.getY());
+			writePosition(buf, bullet.getRenderX(), bullet.getRenderY());
 			buf.put((byte) (Math.atan2(bullet.getVy(), bullet.getVx()) / 2 / Math.PI * 255));
 		}
-		Profiler.timeEnd("Compute bul states");
+		WRITE_BULLETS_TIME.stop(start);
 	}
 
 	public List<Robot> healthChangedRobots(Collection<Robot> robots) {